@@ -0,0 +1,110 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.appenders;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the table-driven {@link JsonLayout#appendValue} with the former
+ * char-by-char escaping, which is kept here as {@link #perChar} baseline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonEscapeBenchmark {
+    private static final char[] HEX_CHARS =
+        {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
+
+    @Param({"ascii", "mixed", "escapes"})
+    public String input;
+
+    private String value;
+    private final StringBuilder out = new StringBuilder(16 * 1024);
+
+    @Setup
+    public void setUp() {
+        value = Messages.message(input, 1024);
+    }
+
+    @Benchmark
+    public StringBuilder tableDriven() {
+        out.setLength(0);
+        JsonLayout.appendValue(out, value);
+        return out;
+    }
+
+    @Benchmark
+    public StringBuilder perChar() {
+        out.setLength(0);
+        for (int i = 0, len = value.length(); i < len; i++) {
+            appendChar(out, value.charAt(i));
+        }
+        return out;
+    }
+
+    private static void appendChar(StringBuilder out, char ch) {
+        switch (ch) {
+            case '"':
+                out.append("\\\"");
+                break;
+            case '\\':
+                out.append("\\\\");
+                break;
+            case '/':
+                out.append("\\/");
+                break;
+            case '\b':
+                out.append("\\b");
+                break;
+            case '\f':
+                out.append("\\f");
+                break;
+            case '\n':
+                out.append("\\n");
+                break;
+            case '\r':
+                out.append("\\r");
+                break;
+            case '\t':
+                out.append("\\t");
+                break;
+            default:
+                if ((ch <= '\u001F') || ('\u007F' <= ch && ch <= '\u009F') || ('\u2000' <= ch && ch <= '\u20FF')) {
+                    out.append("\\u")
+                        .append(HEX_CHARS[ch >> 12 & 0x000F])
+                        .append(HEX_CHARS[ch >> 8 & 0x000F])
+                        .append(HEX_CHARS[ch >> 4 & 0x000F])
+                        .append(HEX_CHARS[ch & 0x000F]);
+                } else {
+                    out.append(ch);
+                }
+                break;
+        }
+    }
+}
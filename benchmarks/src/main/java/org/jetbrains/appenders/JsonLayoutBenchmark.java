@@ -0,0 +1,182 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.appenders;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.apache.log4j.spi.LoggingEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link JsonLayout#format(LoggingEvent)} for the typical event shapes.
+ * <p/>
+ * Every invocation creates a fresh {@link LoggingEvent}, as log4j caches the location,
+ * the MDC copy and the stack trace strings inside the event.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonLayoutBenchmark {
+    private static final String FQCN = JsonLayoutBenchmark.class.getName();
+
+    @Param({"200"})
+    public int stackDepth;
+
+    private final Logger logger = Logger.getLogger("org.jetbrains.appenders.benchmark.Service");
+
+    private JsonLayout defaultLayout;
+    private JsonLayout locationLayout;
+    private JsonLayout exceptionCacheLayout;
+    private JsonLayout structuredStacktraceLayout;
+
+    private String message;
+    private String escapeHeavyMessage;
+    private Throwable deepException;
+
+    private final OutputStream nullStream = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        defaultLayout = new JsonLayout();
+        defaultLayout.setHostName("benchmark-host");
+        defaultLayout.activateOptions();
+
+        locationLayout = new JsonLayout();
+        locationLayout.setHostName("benchmark-host");
+        locationLayout.setIncludedFields("location");
+        locationLayout.activateOptions();
+
+        exceptionCacheLayout = new JsonLayout();
+        exceptionCacheLayout.setHostName("benchmark-host");
+        exceptionCacheLayout.setExceptionCacheSize(16);
+        exceptionCacheLayout.activateOptions();
+
+        structuredStacktraceLayout = new JsonLayout();
+        structuredStacktraceLayout.setHostName("benchmark-host");
+        structuredStacktraceLayout.setStructuredStacktrace(true);
+        structuredStacktraceLayout.setMaxStacktraceFrames(50);
+        structuredStacktraceLayout.activateOptions();
+
+        message = Messages.message("ascii", 120);
+        escapeHeavyMessage = Messages.message("escapes", 1024);
+        deepException = deepException(stackDepth);
+    }
+
+    /**
+     * Fills the MDC of the benchmark thread, requested only by the benchmarks which need it
+     */
+    @State(Scope.Thread)
+    public static class LargeMdc {
+        @Param({"100"})
+        public int mdcSize;
+
+        @Setup
+        public void setUp() {
+            for (int i = 0; i < mdcSize; i++) {
+                MDC.put("mdc_key_" + i, "mdc_value_" + i);
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            MDC.clear();
+        }
+    }
+
+    @Benchmark
+    public String defaultFields() {
+        return defaultLayout.format(event(message, null));
+    }
+
+    @Benchmark
+    public int defaultFieldsToBytes() throws Exception {
+        return defaultLayout.format(event(message, null), nullStream);
+    }
+
+    @Benchmark
+    public String withLocation() {
+        return locationLayout.format(event(message, null));
+    }
+
+    @Benchmark
+    public String withLargeMdc(LargeMdc mdc) {
+        return defaultLayout.format(event(message, null));
+    }
+
+    @Benchmark
+    public String withDeepException() {
+        return defaultLayout.format(event(message, deepException));
+    }
+
+    @Benchmark
+    public String withDeepExceptionCached() {
+        return exceptionCacheLayout.format(event(message, deepException));
+    }
+
+    @Benchmark
+    public String withDeepExceptionStructured() {
+        return structuredStacktraceLayout.format(event(message, deepException));
+    }
+
+    @Benchmark
+    public String escapeHeavyMessage() {
+        return defaultLayout.format(event(escapeHeavyMessage, null));
+    }
+
+    private LoggingEvent event(String message, Throwable throwable) {
+        return new LoggingEvent(FQCN, logger, Level.INFO, message, throwable);
+    }
+
+    static Throwable deepException(int depth) {
+        try {
+            recurse(depth);
+            throw new AssertionError();
+        } catch (IllegalStateException e) {
+            return e;
+        }
+    }
+
+    private static void recurse(int depth) {
+        if (depth <= 0) {
+            throw new IllegalStateException("Failure at the bottom of a deep stack");
+        }
+        recurse(depth - 1);
+    }
+}
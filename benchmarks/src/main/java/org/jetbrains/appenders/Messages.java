@@ -0,0 +1,49 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.appenders;
+
+/**
+ * Sample log messages shared by the benchmarks.
+ */
+final class Messages {
+    private static final String ASCII = "User 42 requested GET on the resource, response took 17 ms and returned 200 OK. ";
+    private static final String MIXED = "Пользователь 42 запросил путь /api/v1/items?id=7 — ответ \"OK\" за 17 мс. ";
+    private static final String ESCAPES = "{\"path\":\"C:\\\\temp\\\\a/b\",\n\t\"x\":\"\u0001\u2028\"}\r\n";
+
+    private Messages() {
+    }
+
+    /**
+     * @param kind one of {@code ascii}, {@code mixed} or {@code escapes}
+     */
+    static String message(String kind, int length) {
+        String sample;
+        if ("ascii".equals(kind)) {
+            sample = ASCII;
+        } else if ("mixed".equals(kind)) {
+            sample = MIXED;
+        } else if ("escapes".equals(kind)) {
+            sample = ESCAPES;
+        } else {
+            throw new IllegalArgumentException("Unknown message kind: " + kind);
+        }
+
+        StringBuilder sb = new StringBuilder(length + sample.length());
+        while (sb.length() < length) {
+            sb.append(sample);
+        }
+        sb.setLength(length);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.appenders;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end cost of appending an event to a {@link JsonFileAppender},
+ * including the JSON encoding, the file I/O and the rollovers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RollingAppenderBenchmark {
+    private static final String FQCN = RollingAppenderBenchmark.class.getName();
+
+    @Param({"true", "false"})
+    public boolean immediateFlush;
+
+    @Param({"1MB"})
+    public String maxFileSize;
+
+    /**
+     * 0 writes through the regular log4j writer
+     */
+    @Param({"0", "65536"})
+    public int channelBufferSize;
+
+    /**
+     * Writes through a memory mapping of the whole file, overrides the channel buffer
+     */
+    @Param({"false", "true"})
+    public boolean memoryMapped;
+
+    private final Logger logger = Logger.getLogger("org.jetbrains.appenders.benchmark.Service");
+
+    private File home;
+    private NextRollingFileAppender appender;
+    private String message;
+
+    @Setup
+    public void setUp() throws IOException {
+        home = File.createTempFile("json-appender", "benchmark");
+        if (!home.delete() || !home.mkdirs()) {
+            throw new IOException("Failed to create " + home);
+        }
+
+        appender = new JsonFileAppender();
+        appender.setFile(new File(home, "log").getPath());
+        appender.setMaxFileSize(maxFileSize);
+        appender.setMaxBackupIndex(3);
+        appender.setImmediateFlush(immediateFlush);
+        appender.setChannelBufferSize(channelBufferSize);
+        appender.setMemoryMapped(memoryMapped);
+        appender.activateOptions();
+
+        message = Messages.message("ascii", 120);
+    }
+
+    @TearDown
+    public void tearDown() {
+        appender.close();
+        File[] files = home.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        home.delete();
+    }
+
+    @Benchmark
+    public void append() {
+        appender.doAppend(new LoggingEvent(FQCN, logger, Level.INFO, message, null));
+    }
+}
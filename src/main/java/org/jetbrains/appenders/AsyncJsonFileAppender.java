@@ -0,0 +1,361 @@
+package org.jetbrains.appenders;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.Filter;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link JsonFileAppender} which moves formatting and file I/O off
+ * the logging threads.
+ *
+ * Events are put into a bounded lock-free ring buffer and a single
+ * background thread formats and writes them in batches, flushing
+ * the file once per batch. Logging threads do not take the appender lock.
+ *
+ * When the queue is full the {@link #setOverflowPolicy overflow policy} decides:
+ * <ul>
+ *   <li>{@code block} - wait for the writer (default)</li>
+ *   <li>{@code drop-below-level} - drop events below {@link #setDiscardLevel discardLevel}, wait for the others</li>
+ *   <li>{@code drop-oldest} - drop the oldest queued event to make room</li>
+ * </ul>
+ * Dropped events are counted, see {@link #getDroppedEventCount()}.
+ */
+public class AsyncJsonFileAppender extends JsonFileAppender {
+  public static final String OVERFLOW_BLOCK = "block";
+  public static final String OVERFLOW_DROP_BELOW_LEVEL = "drop-below-level";
+  public static final String OVERFLOW_DROP_OLDEST = "drop-oldest";
+
+  private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+  private static final long BLOCKED_PRODUCER_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+  private int queueSize = 8192;
+  private int batchSize = 256;
+  private String overflowPolicy = OVERFLOW_BLOCK;
+  private Level discardLevel = Level.WARN;
+  private boolean locationInfo = false;
+  private long shutdownTimeout = 5000;
+
+  private final AtomicLong myDroppedEvents = new AtomicLong();
+  private volatile EventRingBuffer myQueue = null;
+  private volatile Thread myWriterThread = null;
+  private volatile boolean myWriterParked = false;
+  private volatile boolean myStopping = false;
+  /**
+   * Set by {@link #close()} once nobody is going to write the queued events any more
+   */
+  private volatile boolean myFinalDrainDone = false;
+
+  @Override
+  public void activateOptions() {
+    stopWriter();
+    super.activateOptions();
+
+    myQueue = new EventRingBuffer(Math.max(2, queueSize));
+    myStopping = false;
+    myFinalDrainDone = false;
+    final Thread writer = new Thread(new Runnable() {
+      public void run() {
+        writeLoop();
+      }
+    }, "AsyncJsonFileAppender-" + (name == null ? fileName : name));
+    writer.setDaemon(true);
+    myWriterThread = writer;
+    writer.start();
+  }
+
+  /**
+   * Same as {@link org.apache.log4j.AppenderSkeleton#doAppend}
+   * but without the appender lock, which is only taken by the writer thread
+   */
+  @Override
+  public void doAppend(LoggingEvent event) {
+    if (closed) {
+      LogLog.error("Attempted to append to closed appender named [" + name + "].");
+      return;
+    }
+
+    if (!isAsSevereAsThreshold(event.getLevel())) {
+      return;
+    }
+
+    Filter f = getFirstFilter();
+    FILTERS:
+    while (f != null) {
+      switch (f.decide(event)) {
+        case Filter.DENY:
+          return;
+        case Filter.ACCEPT:
+          break FILTERS;
+        case Filter.NEUTRAL:
+          f = f.getNext();
+      }
+    }
+
+    append(event);
+  }
+
+  @Override
+  public void append(LoggingEvent event) {
+    final EventRingBuffer queue = myQueue;
+    final Thread writer = myWriterThread;
+    if (queue == null || writer == null || writer == Thread.currentThread()) {
+      // not started yet, or an event logged while writing (e.g. from toString())
+      appendNow(event);
+      return;
+    }
+
+    captureThreadState(event);
+    // the filters decided on this thread
+    event = SamplingFilter.carryMarkedRate(getFirstFilter(), event);
+
+    if (myStopping || !enqueue(queue, event)) {
+      // closing, the writer may have drained the queue for the last time already
+      myDroppedEvents.incrementAndGet();
+      return;
+    }
+
+    if (myFinalDrainDone) {
+      // offered after the final drain of close()
+      dropQueued(queue);
+    } else if (myWriterParked) {
+      LockSupport.unpark(writer);
+    }
+  }
+
+  private synchronized void appendNow(LoggingEvent event) {
+    super.append(event);
+  }
+
+  /**
+   * Everything taken from the current thread must be resolved
+   * before the event is passed to the writer thread
+   */
+  private void captureThreadState(LoggingEvent event) {
+    event.getNDC();
+    event.getThreadName();
+    event.getMDCCopy();
+    event.getRenderedMessage();
+    if (locationInfo || (layout instanceof JsonLayout && ((JsonLayout) layout).requiresLocationInfo())) {
+      event.getLocationInformation();
+    }
+  }
+
+  /**
+   * @return false if the event was dropped
+   */
+  private boolean enqueue(EventRingBuffer queue, LoggingEvent event) {
+    if (queue.offer(event)) {
+      return true;
+    }
+
+    final String policy = overflowPolicy;
+    if (OVERFLOW_DROP_OLDEST.equalsIgnoreCase(policy)) {
+      do {
+        if (queue.poll() != null) {
+          myDroppedEvents.incrementAndGet();
+        }
+      } while (!queue.offer(event));
+      return true;
+    }
+
+    if (OVERFLOW_DROP_BELOW_LEVEL.equalsIgnoreCase(policy) && !event.getLevel().isGreaterOrEqual(discardLevel)) {
+      return false;
+    }
+
+    while (!queue.offer(event)) {
+      if (myStopping) {
+        return false;
+      }
+      final Thread writer = myWriterThread;
+      if (writer != null) {
+        LockSupport.unpark(writer);
+      }
+      LockSupport.parkNanos(this, BLOCKED_PRODUCER_PARK_NANOS);
+    }
+    return true;
+  }
+
+  private void writeLoop() {
+    final EventRingBuffer queue = myQueue;
+    final LoggingEvent[] batch = new LoggingEvent[Math.max(1, batchSize)];
+
+    for (;;) {
+      final int count = queue.drainTo(batch);
+      if (count == 0) {
+        if (myStopping) break;
+
+        myWriterParked = true;
+        if (queue.isEmpty() && !myStopping) {
+          LockSupport.parkNanos(this, PARK_NANOS);
+        }
+        myWriterParked = false;
+        continue;
+      }
+
+      try {
+        writeBatch(batch, count);
+      } catch (RuntimeException e) {
+        LogLog.error("Failed to write events to [" + fileName + "].", e);
+      } finally {
+        Arrays.fill(batch, 0, count, null);
+      }
+    }
+  }
+
+  private synchronized void writeBatch(LoggingEvent[] batch, int count) {
+    final boolean flush = immediateFlush;
+    immediateFlush = false;
+    try {
+      for (int i = 0; i < count; i++) {
+        super.append(batch[i]);
+      }
+    } finally {
+      immediateFlush = flush;
+    }
+    if (qw != null) {
+      qw.flush();
+    }
+  }
+
+  private void stopWriter() {
+    final Thread writer = myWriterThread;
+    if (writer == null) return;
+
+    myStopping = true;
+    LockSupport.unpark(writer);
+    try {
+      writer.join(shutdownTimeout);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    myWriterThread = null;
+    if (writer.isAlive()) {
+      LogLog.warn("Writer thread of [" + name + "] did not stop within " + shutdownTimeout + " ms, some events may be lost");
+      return;
+    }
+
+    // events offered by threads which had not seen the stop yet
+    final EventRingBuffer queue = myQueue;
+    drainNow(queue);
+    myFinalDrainDone = true;
+    // offered before the flag was seen by the producer
+    drainNow(queue);
+  }
+
+  private void drainNow(EventRingBuffer queue) {
+    final LoggingEvent[] batch = new LoggingEvent[Math.max(1, batchSize)];
+    int count;
+    while ((count = queue.drainTo(batch)) > 0) {
+      writeBatch(batch, count);
+    }
+  }
+
+  /**
+   * Counts the events nobody is going to write any more as dropped
+   */
+  private void dropQueued(EventRingBuffer queue) {
+    while (queue.poll() != null) {
+      myDroppedEvents.incrementAndGet();
+    }
+  }
+
+  /**
+   * Writes all queued events and closes the file
+   */
+  @Override
+  public void close() {
+    // must not hold the appender lock here, the writer needs it to drain the queue
+    stopWriter();
+    super.close();
+  }
+
+  /**
+   * @return number of events dropped because the queue was full
+   * or the appender was being closed
+   */
+  public long getDroppedEventCount() {
+    return myDroppedEvents.get();
+  }
+
+  public int getQueueSize() {
+    return queueSize;
+  }
+
+  /**
+   * Maximum number of queued events, rounded up to a power of two.
+   * Applied on {@link #activateOptions()}
+   */
+  public void setQueueSize(int queueSize) {
+    this.queueSize = queueSize;
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * Maximum number of events written between two flushes.
+   * Applied on {@link #activateOptions()}
+   */
+  public void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  public String getOverflowPolicy() {
+    return overflowPolicy;
+  }
+
+  /**
+   * One of {@code block}, {@code drop-below-level} or {@code drop-oldest}
+   */
+  public void setOverflowPolicy(String overflowPolicy) {
+    if (!OVERFLOW_BLOCK.equalsIgnoreCase(overflowPolicy)
+        && !OVERFLOW_DROP_BELOW_LEVEL.equalsIgnoreCase(overflowPolicy)
+        && !OVERFLOW_DROP_OLDEST.equalsIgnoreCase(overflowPolicy)) {
+      LogLog.warn("Unknown overflowPolicy '" + overflowPolicy + "', using " + OVERFLOW_BLOCK);
+      overflowPolicy = OVERFLOW_BLOCK;
+    }
+    this.overflowPolicy = overflowPolicy;
+  }
+
+  public Level getDiscardLevel() {
+    return discardLevel;
+  }
+
+  /**
+   * With the {@code drop-below-level} policy events below this level
+   * are dropped when the queue is full, WARN by default
+   */
+  public void setDiscardLevel(Level discardLevel) {
+    this.discardLevel = discardLevel;
+  }
+
+  public boolean getLocationInfo() {
+    return locationInfo;
+  }
+
+  /**
+   * Resolve the location on the logging thread even if the layout
+   * does not ask for it
+   */
+  public void setLocationInfo(boolean locationInfo) {
+    this.locationInfo = locationInfo;
+  }
+
+  public long getShutdownTimeout() {
+    return shutdownTimeout;
+  }
+
+  /**
+   * How long {@link #close()} waits for the queued events to be written, in milliseconds
+   */
+  public void setShutdownTimeout(long shutdownTimeout) {
+    this.shutdownTimeout = shutdownTimeout;
+  }
+}
@@ -1,40 +1,56 @@
 package org.jetbrains.appenders;
 
 import org.apache.log4j.Level;
+import org.apache.log4j.helpers.LogLog;
 import org.apache.log4j.spi.Filter;
 import org.apache.log4j.spi.LoggingEvent;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 /**ª
+ * Denies the events of the loggers which names start with one of the given
+ * categories, up to the level of that category. The longest matching category
+ * decides, e.g. with {@code org.apache:WARN, org.apache.http:INFO} a warning
+ * of {@code org.apache.http.wire} is passed through.
+ *
  * @author Eugene Petrenko (eugene.petrenko@gmail.com)
  *
  */
 public class CategoryFilter extends Filter {
+  /**
+   * Logger names are few, the limit only guards against names made up on the fly
+   */
+  private static final int MAX_CACHED_LOGGERS = 4096;
+  /**
+   * Below {@link Level#ALL}
+   */
+  private static final Long NOT_DENIED = Long.MIN_VALUE;
+
   private String myDenyCategoryStartsWith;
   private Level myMaxDenyLevel;
+  private String myDenyCategories;
+
+  /**
+   * null if there are no categories
+   */
+  private volatile Rules myRules;
 
   @Override
   public int decide(final LoggingEvent loggingEvent) {
     if (loggingEvent == null) return NEUTRAL;
 
-    if (categoryIsDenied(loggingEvent) && levelIsDenied(loggingEvent)) {
-      return DENY;
-    }
-
-    return NEUTRAL;
-  }
-
-  private boolean categoryIsDenied(final LoggingEvent loggingEvent) {
-    if (myDenyCategoryStartsWith == null) return false;
+    final Rules rules = myRules;
+    if (rules == null) return NEUTRAL;
 
     final String loggerName = loggingEvent.getLoggerName();
-    if (loggerName == null) return false;
+    if (loggerName == null) return NEUTRAL;
 
-    //NOP
-    return loggerName.startsWith(myDenyCategoryStartsWith);
-  }
+    if (loggingEvent.getLevel().toInt() <= rules.getMaxDenyLevel(loggerName)) {
+      return DENY;
+    }
 
-  private boolean levelIsDenied(final LoggingEvent loggingEvent) {
-    return myMaxDenyLevel == null || myMaxDenyLevel.isGreaterOrEqual(loggingEvent.getLevel());
+    return NEUTRAL;
   }
 
   public void setDenyCategory(final String denyCategory) {
@@ -43,9 +59,87 @@ public class CategoryFilter extends Filter {
     } else {
       myDenyCategoryStartsWith = denyCategory.trim();
     }
+    compileRules();
   }
 
+  /**
+   * The default level for the categories given without one, all levels are denied if not set
+   */
   public void setMaxDenyLevel(final Level level) {
     myMaxDenyLevel = level;
+    compileRules();
+  }
+
+  /**
+   * Comma separated categories, each optionally followed by the maximum level to deny,
+   * e.g. {@code org.apache.http:INFO, io.netty}. Used together with {@link #setDenyCategory}.
+   */
+  public void setDenyCategories(final String denyCategories) {
+    myDenyCategories = denyCategories;
+    compileRules();
+  }
+
+  private void compileRules() {
+    // all levels are at most OFF
+    final Level defaultLevel = myMaxDenyLevel != null ? myMaxDenyLevel : Level.OFF;
+    final CategoryTrie<Level> rules = new CategoryTrie<Level>();
+    boolean empty = true;
+
+    if (myDenyCategories != null) {
+      for (String rule : myDenyCategories.split(",")) {
+        rule = rule.trim();
+        if (rule.length() == 0) continue;
+
+        final int colon = rule.lastIndexOf(':');
+        Level level = defaultLevel;
+        if (colon >= 0) {
+          level = Level.toLevel(rule.substring(colon + 1).trim(), null);
+          if (level == null) {
+            LogLog.warn("Unknown level in the category filter rule [" + rule + "], the rule is ignored");
+            continue;
+          }
+          rule = rule.substring(0, colon).trim();
+        }
+        rules.put(rule, level);
+        empty = false;
+      }
+    }
+
+    if (myDenyCategoryStartsWith != null) {
+      rules.put(myDenyCategoryStartsWith, defaultLevel);
+      empty = false;
+    }
+
+    myRules = empty ? null : new Rules(rules);
+  }
+
+  /**
+   * The categories compiled into a trie, with the decisions for the loggers seen so far.
+   * Replaced as a whole when the categories change.
+   */
+  private static final class Rules {
+    private final CategoryTrie<Level> myTrie;
+    private final ConcurrentMap<String, Long> myMaxDenyLevels = new ConcurrentHashMap<String, Long>();
+
+    Rules(CategoryTrie<Level> trie) {
+      myTrie = trie;
+    }
+
+    /**
+     * @return the highest level denied for the logger as {@link Level#toInt()}
+     */
+    long getMaxDenyLevel(String loggerName) {
+      Long maxDenyLevel = myMaxDenyLevels.get(loggerName);
+      if (maxDenyLevel == null) {
+        final Level level = myTrie.find(loggerName);
+        maxDenyLevel = level != null ? Long.valueOf(level.toInt()) : NOT_DENIED;
+
+        if (myMaxDenyLevels.size() >= MAX_CACHED_LOGGERS) {
+          myMaxDenyLevels.clear();
+        }
+        myMaxDenyLevels.put(loggerName, maxDenyLevel);
+      }
+      return maxDenyLevel;
+    }
   }
 }
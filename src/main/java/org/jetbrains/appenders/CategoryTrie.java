@@ -0,0 +1,102 @@
+package org.jetbrains.appenders;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps category prefixes to values and finds the longest prefix of a category name
+ * with a single walk over its dot separated segments, whatever the number of prefixes.
+ *
+ * Prefixes match the same way as {@link String#startsWith}, e.g. {@code org.jetbrains}
+ * matches {@code org.jetbrains.appenders} as well as {@code org.jetbrainsfoo}.
+ * A prefix is stored as the path of its complete segments and the rest of it,
+ * which is compared with the beginning of the next segment of the name.
+ */
+final class CategoryTrie<V> {
+  private final Node<V> myRoot = new Node<V>();
+
+  /**
+   * Replaces the value of the same prefix
+   */
+  void put(String prefix, V value) {
+    Node<V> node = myRoot;
+    int start = 0;
+    int dot;
+    while ((dot = prefix.indexOf('.', start)) >= 0) {
+      node = node.child(prefix.substring(start, dot));
+      start = dot + 1;
+    }
+    node.putPartial(prefix.substring(start), value);
+  }
+
+  /**
+   * @return the value of the longest prefix of the name, or null if there is none
+   */
+  V find(String name) {
+    V found = null;
+    Node<V> node = myRoot;
+    int start = 0;
+    while (node != null) {
+      final int dot = name.indexOf('.', start);
+      final int end = dot >= 0 ? dot : name.length();
+
+      final V partial = node.findPartial(name, start, end);
+      if (partial != null) {
+        // prefixes further down the name are longer
+        found = partial;
+      }
+      if (dot < 0 || node.children == null) break;
+
+      node = node.children.get(name.substring(start, end));
+      start = dot + 1;
+    }
+    return found;
+  }
+
+  private static final class Node<V> {
+    private Map<String, Node<V>> children;
+    /**
+     * Prefixes ending at this node with the rest of their last segment, the longest first
+     */
+    private final List<String> partials = new ArrayList<String>(1);
+    private final List<V> values = new ArrayList<V>(1);
+
+    Node<V> child(String segment) {
+      if (children == null) {
+        children = new HashMap<String, Node<V>>();
+      }
+      Node<V> child = children.get(segment);
+      if (child == null) {
+        child = new Node<V>();
+        children.put(segment, child);
+      }
+      return child;
+    }
+
+    void putPartial(String partial, V value) {
+      final int existing = partials.indexOf(partial);
+      if (existing >= 0) {
+        values.set(existing, value);
+        return;
+      }
+      int i = 0;
+      while (i < partials.size() && partials.get(i).length() >= partial.length()) {
+        i++;
+      }
+      partials.add(i, partial);
+      values.add(i, value);
+    }
+
+    V findPartial(String name, int start, int end) {
+      for (int i = 0; i < partials.size(); i++) {
+        final String partial = partials.get(i);
+        if (partial.length() <= end - start && name.startsWith(partial, start)) {
+          return values.get(i);
+        }
+      }
+      return null;
+    }
+  }
+}
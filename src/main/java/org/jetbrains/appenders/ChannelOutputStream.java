@@ -0,0 +1,78 @@
+package org.jetbrains.appenders;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Collects the written bytes in a direct buffer and writes them
+ * to the file channel only when the buffer is full or on {@link #drain()}.
+ *
+ * {@link #flush()} does nothing, so that the writers on top of this stream
+ * do not force a system call per event.
+ */
+class ChannelOutputStream extends FileOutput {
+  private final FileChannel myChannel;
+  private final ByteBuffer myBuffer;
+  private long myCount;
+
+  ChannelOutputStream(FileChannel channel, int bufferSize) {
+    myChannel = channel;
+    myBuffer = ByteBuffer.allocateDirect(Math.max(1, bufferSize));
+  }
+
+  @Override
+  public long getCount() {
+    return myCount;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (!myBuffer.hasRemaining()) {
+      drain();
+    }
+    myBuffer.put((byte) b);
+    myCount++;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (len > myBuffer.remaining()) {
+      drain();
+      if (len > myBuffer.capacity()) {
+        writeFully(ByteBuffer.wrap(b, off, len));
+        myCount += len;
+        return;
+      }
+    }
+    myBuffer.put(b, off, len);
+    myCount += len;
+  }
+
+  @Override
+  public void drain() throws IOException {
+    if (myBuffer.position() == 0) return;
+
+    myBuffer.flip();
+    try {
+      writeFully(myBuffer);
+    } finally {
+      myBuffer.clear();
+    }
+  }
+
+  private void writeFully(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      myChannel.write(buffer);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      drain();
+    } finally {
+      myChannel.close();
+    }
+  }
+}
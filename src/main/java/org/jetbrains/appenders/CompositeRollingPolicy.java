@@ -0,0 +1,30 @@
+package org.jetbrains.appenders;
+
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.util.List;
+
+/**
+ * Rolls over as soon as any of the given policies does, e.g. every hour or every 10MB
+ * whichever comes first
+ */
+public class CompositeRollingPolicy implements RollingPolicy {
+  private final RollingPolicy[] myPolicies;
+
+  public CompositeRollingPolicy(RollingPolicy... policies) {
+    myPolicies = policies.clone();
+  }
+
+  public CompositeRollingPolicy(List<RollingPolicy> policies) {
+    myPolicies = policies.toArray(new RollingPolicy[policies.size()]);
+  }
+
+  public boolean isTriggeringEvent(LoggingEvent event, long fileSize, long fileAge, long fileEvents) {
+    for (RollingPolicy policy : myPolicies) {
+      if (policy.isTriggeringEvent(event, fileSize, fileAge, fileEvents)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
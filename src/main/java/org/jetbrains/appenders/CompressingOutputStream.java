@@ -0,0 +1,131 @@
+package org.jetbrains.appenders;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes the file as a gzip stream. {@link #drain()} does a sync flush of the
+ * deflater, after which the file is a readable gzip prefix: {@code zcat} prints
+ * all the events written so far and only complains about the missing trailer
+ * until the stream is closed.
+ *
+ * The sync flush needs Java 7, see {@link #isSupported()}.
+ */
+class CompressingOutputStream extends FileOutput {
+  static final String EXTENSION = ".gz";
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+  private final OutputStream myStream;
+  private final boolean myCountCompressed;
+  private final Deflater myDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+  private final CRC32 myCrc = new CRC32();
+  private final byte[] myBuffer = new byte[BUFFER_SIZE];
+  private boolean myStarted;
+  private boolean myClosed;
+  private long myCount;
+  private long myCompressedCount;
+
+  /**
+   * @param countCompressed whether {@link #getCount()} returns the size of the file
+   *                        or the number of bytes written to this stream
+   */
+  CompressingOutputStream(OutputStream stream, boolean countCompressed) {
+    myStream = stream;
+    myCountCompressed = countCompressed;
+  }
+
+  static boolean isSupported() {
+    try {
+      Deflater.class.getMethod("deflate", byte[].class, int.class, int.class, int.class);
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  @Override
+  public long getCount() {
+    return myCountCompressed ? myCompressedCount : myCount;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[]{(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    start();
+    myDeflater.setInput(b, off, len);
+    myCrc.update(b, off, len);
+    myCount += len;
+    while (!myDeflater.needsInput()) {
+      deflate(Deflater.NO_FLUSH);
+    }
+  }
+
+  @Override
+  public void drain() throws IOException {
+    if (myClosed) return;
+
+    start();
+    int len;
+    do {
+      len = deflate(Deflater.SYNC_FLUSH);
+      // a full buffer means there may be more output
+    } while (len == myBuffer.length);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (myClosed) return;
+    myClosed = true;
+
+    try {
+      start();
+      myDeflater.finish();
+      while (!myDeflater.finished()) {
+        deflate(Deflater.NO_FLUSH);
+      }
+      final byte[] trailer = new byte[8];
+      writeInt(trailer, 0, myCrc.getValue());
+      writeInt(trailer, 4, myCount);
+      writeCompressed(trailer, trailer.length);
+    } finally {
+      myDeflater.end();
+      myStream.close();
+    }
+  }
+
+  private void start() throws IOException {
+    if (myStarted) return;
+    myStarted = true;
+    writeCompressed(HEADER, HEADER.length);
+  }
+
+  private int deflate(int flush) throws IOException {
+    final int len = myDeflater.deflate(myBuffer, 0, myBuffer.length, flush);
+    if (len > 0) {
+      writeCompressed(myBuffer, len);
+    }
+    return len;
+  }
+
+  private void writeCompressed(byte[] b, int len) throws IOException {
+    myStream.write(b, 0, len);
+    myCompressedCount += len;
+  }
+
+  /**
+   * Writes the lower 32 bits in the little endian order
+   */
+  private static void writeInt(byte[] buf, int offset, long value) {
+    for (int i = 0; i < 4; i++) {
+      buf[offset + i] = (byte) (value >> (8 * i));
+    }
+  }
+}
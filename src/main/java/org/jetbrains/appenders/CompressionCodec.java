@@ -0,0 +1,22 @@
+package org.jetbrains.appenders;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Compresses rolled over log files, see {@link NextRollingFileAppender#setCompression}.
+ * Implementations need a public no-argument constructor to be set up
+ * from a log4j configuration.
+ */
+public interface CompressionCodec {
+  /**
+   * @return the suffix added to the name of a compressed file, e.g. {@code ".gz"}
+   */
+  String getExtension();
+
+  /**
+   * @return a stream compressing the data into {@code out},
+   * closing it must finish the compressed data and close {@code out}
+   */
+  OutputStream compress(OutputStream out) throws IOException;
+}
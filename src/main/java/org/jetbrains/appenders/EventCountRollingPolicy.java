@@ -0,0 +1,18 @@
+package org.jetbrains.appenders;
+
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Rolls over after the given number of events
+ */
+public class EventCountRollingPolicy implements RollingPolicy {
+  private final long myMaxEvents;
+
+  public EventCountRollingPolicy(long maxEvents) {
+    myMaxEvents = maxEvents;
+  }
+
+  public boolean isTriggeringEvent(LoggingEvent event, long fileSize, long fileAge, long fileEvents) {
+    return fileEvents >= myMaxEvents;
+  }
+}
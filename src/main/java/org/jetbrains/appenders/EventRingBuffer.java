@@ -0,0 +1,108 @@
+package org.jetbrains.appenders;
+
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free multi-producer multi-consumer queue of events,
+ * based on Dmitry Vyukov's bounded MPMC queue.
+ *
+ * Every slot carries a sequence number telling whether it is free
+ * for the producer of the given position or filled for the consumer of it,
+ * so producers and consumers only contend on a CAS of their own counter.
+ */
+class EventRingBuffer {
+  private final int myMask;
+  private final AtomicReferenceArray<LoggingEvent> myEvents;
+  private final AtomicLongArray mySequences;
+  private final AtomicLong myEnqueuePos = new AtomicLong();
+  private final AtomicLong myDequeuePos = new AtomicLong();
+
+  /**
+   * @param capacity is rounded up to the next power of two
+   */
+  EventRingBuffer(int capacity) {
+    int size = 2;
+    while (size < capacity) {
+      size <<= 1;
+    }
+    myMask = size - 1;
+    myEvents = new AtomicReferenceArray<LoggingEvent>(size);
+    mySequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      mySequences.set(i, i);
+    }
+  }
+
+  public int capacity() {
+    return myMask + 1;
+  }
+
+  /**
+   * @return false if the queue is full
+   */
+  public boolean offer(LoggingEvent event) {
+    long pos = myEnqueuePos.get();
+    for (;;) {
+      final int index = (int) (pos & myMask);
+      final long diff = mySequences.get(index) - pos;
+      if (diff == 0) {
+        if (myEnqueuePos.compareAndSet(pos, pos + 1)) {
+          myEvents.lazySet(index, event);
+          mySequences.lazySet(index, pos + 1);
+          return true;
+        }
+        pos = myEnqueuePos.get();
+      } else if (diff < 0) {
+        return false;
+      } else {
+        pos = myEnqueuePos.get();
+      }
+    }
+  }
+
+  /**
+   * @return null if the queue is empty
+   */
+  public LoggingEvent poll() {
+    long pos = myDequeuePos.get();
+    for (;;) {
+      final int index = (int) (pos & myMask);
+      final long diff = mySequences.get(index) - (pos + 1);
+      if (diff == 0) {
+        if (myDequeuePos.compareAndSet(pos, pos + 1)) {
+          final LoggingEvent event = myEvents.get(index);
+          myEvents.lazySet(index, null);
+          mySequences.lazySet(index, pos + myMask + 1);
+          return event;
+        }
+        pos = myDequeuePos.get();
+      } else if (diff < 0) {
+        return null;
+      } else {
+        pos = myDequeuePos.get();
+      }
+    }
+  }
+
+  /**
+   * Moves up to {@code batch.length} events into the given array
+   * @return number of events moved
+   */
+  public int drainTo(LoggingEvent[] batch) {
+    int count = 0;
+    while (count < batch.length) {
+      final LoggingEvent event = poll();
+      if (event == null) break;
+      batch[count++] = event;
+    }
+    return count;
+  }
+
+  public boolean isEmpty() {
+    return myDequeuePos.get() >= myEnqueuePos.get();
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.appenders;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of escaped {@code stacktrace} values, so that an exception logged over and over
+ * again is printed and escaped only once.
+ * <p/>
+ * Two throwables share an entry when every throwable of their cause chains has the same class,
+ * the same {@code toString()} and the same stack frames. Suppressed exceptions are not a part of
+ * the key, see {@link JsonLayout#setExceptionCacheSize(int)}.
+ */
+final class ExceptionCache {
+    /**
+     * Cause chains longer than this are not cached, the key would cost more than printing
+     */
+    private static final int MAX_CHAIN_LENGTH = 32;
+
+    private final Map<Key, String> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    ExceptionCache(final int maxSize) {
+        entries = new LinkedHashMap<Key, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, String> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return the key of the given throwable or null if it can not be cached
+     */
+    static Key keyOf(Throwable throwable) {
+        List<Throwable> chain = new ArrayList<Throwable>(4);
+        for (Throwable t = throwable; t != null; t = t.getCause()) {
+            for (Throwable seen : chain) {
+                if (seen == t) {
+                    return null;
+                }
+            }
+            if (chain.size() == MAX_CHAIN_LENGTH) {
+                return null;
+            }
+            chain.add(t);
+        }
+
+        Object[] parts = new Object[chain.size() * 3];
+        int i = 0;
+        for (Throwable t : chain) {
+            parts[i++] = t.getClass();
+            parts[i++] = String.valueOf(t);
+            parts[i++] = t.getStackTrace();
+        }
+        return new Key(parts);
+    }
+
+    String get(Key key) {
+        String value;
+        synchronized (entries) {
+            value = entries.get(key);
+        }
+        if (value != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return value;
+    }
+
+    void put(Key key, String value) {
+        synchronized (entries) {
+            entries.put(key, value);
+        }
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    long getMissCount() {
+        return misses.get();
+    }
+
+    static final class Key {
+        private final Object[] parts;
+        private final int hash;
+
+        Key(Object[] parts) {
+            this.parts = parts;
+            this.hash = Arrays.deepHashCode(parts);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return this == o || o instanceof Key && hash == ((Key) o).hash && Arrays.deepEquals(parts, ((Key) o).parts);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
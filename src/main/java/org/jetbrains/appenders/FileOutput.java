@@ -0,0 +1,28 @@
+package org.jetbrains.appenders;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A stream to the current log file which keeps the written bytes
+ * in memory and counts them, so that the appender neither needs
+ * a counting writer nor a system call per event.
+ */
+abstract class FileOutput extends OutputStream {
+  /**
+   * @return number of bytes written to the file so far
+   */
+  public abstract long getCount();
+
+  /**
+   * Hands the buffered bytes over to the operating system
+   */
+  public abstract void drain() throws IOException;
+
+  /**
+   * Does nothing, the writers on top of this stream flush it after every event
+   */
+  @Override
+  public void flush() {
+  }
+}
@@ -0,0 +1,20 @@
+package org.jetbrains.appenders;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses log files with gzip, which leaves them readable by {@code zcat} and {@code zgrep}
+ */
+public class GzipCodec implements CompressionCodec {
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  public String getExtension() {
+    return ".gz";
+  }
+
+  public OutputStream compress(OutputStream out) throws IOException {
+    return new GZIPOutputStream(out, BUFFER_SIZE);
+  }
+}
@@ -0,0 +1,119 @@
+package org.jetbrains.appenders;
+
+import org.apache.log4j.helpers.LogLog;
+
+import java.util.concurrent.*;
+
+/**
+ * Background thread of an appender for the file system work
+ * which does not need to be done under the appender lock,
+ * e.g. removing old log files.
+ *
+ * The thread is a daemon and is started on the first task.
+ * Tasks run one by one in the order they were submitted.
+ * Tasks must not wait for the appender lock while the appender
+ * may be waiting for the housekeeper in {@link #shutdown}.
+ */
+class Housekeeper {
+  private final String myName;
+  private ScheduledThreadPoolExecutor myExecutor = null;
+
+  Housekeeper(String name) {
+    myName = name;
+  }
+
+  /**
+   * Runs the task on the background thread,
+   * or right away if the housekeeper was shut down
+   */
+  public void execute(Runnable task) {
+    final ScheduledThreadPoolExecutor executor = getExecutor();
+    try {
+      executor.execute(new SafeTask(task));
+    } catch (RejectedExecutionException e) {
+      task.run();
+    }
+  }
+
+  /**
+   * Runs the task on the background thread once after {@code delayMillis}
+   */
+  public ScheduledFuture<?> scheduleOnce(Runnable task, long delayMillis) {
+    return getExecutor().schedule(new SafeTask(task), delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Runs the task on the background thread every {@code periodMillis}
+   * until it is cancelled or the housekeeper is shut down
+   */
+  public ScheduledFuture<?> schedule(Runnable task, long periodMillis) {
+    return getExecutor().scheduleWithFixedDelay(new SafeTask(task), periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Waits for the tasks submitted so far
+   */
+  public void await(long timeoutMillis) throws InterruptedException, TimeoutException {
+    try {
+      getExecutor().submit(new Runnable() {
+        public void run() {
+        }
+      }).get(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // already stopped, nothing to wait for
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Lets the submitted tasks finish and stops the thread.
+   * A new thread is started if more tasks are submitted later.
+   */
+  public void shutdown(long timeoutMillis) {
+    final ScheduledThreadPoolExecutor executor;
+    synchronized (this) {
+      executor = myExecutor;
+      myExecutor = null;
+    }
+    if (executor == null) return;
+
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+        LogLog.warn("Background tasks of [" + myName + "] did not finish within " + timeoutMillis + " ms");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private synchronized ScheduledThreadPoolExecutor getExecutor() {
+    if (myExecutor == null) {
+      myExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          final Thread thread = new Thread(r, "Housekeeping-" + myName);
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return myExecutor;
+  }
+
+  private class SafeTask implements Runnable {
+    private final Runnable myTask;
+
+    SafeTask(Runnable task) {
+      myTask = task;
+    }
+
+    public void run() {
+      try {
+        myTask.run();
+      } catch (RuntimeException e) {
+        LogLog.error("Background task of [" + myName + "] failed.", e);
+      }
+    }
+  }
+}
@@ -8,6 +8,7 @@ package org.jetbrains.appenders;
 public class JsonFileAppender extends NextRollingFileAppender {
   {
     setLayout(new JsonLayout());
+    setEncoding("UTF-8");
     setMaximumFileSize(10 * 1024 * 1024);
     setFileExtension(".json");
     setMaxBackupIndex(10);
@@ -25,11 +25,12 @@ import org.apache.log4j.spi.ThrowableInformation;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Pattern;
 
 public class JsonLayout extends Layout {
@@ -39,6 +40,18 @@ public class JsonLayout extends Layout {
     private static final char[] HEX_CHARS =
         {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
 
+    /**
+     * Marks chars below {@code U+0100} which must be escaped, chars above it
+     * only need escaping in the {@code U+2000..U+20FF} range
+     */
+    private static final boolean[] ESCAPED_CHARS = new boolean[0x100];
+
+    static {
+        for (int ch = 0; ch < ESCAPED_CHARS.length; ch++) {
+            ESCAPED_CHARS[ch] = ch <= 0x1F || (0x7F <= ch && ch <= 0x9F) || ch == '"' || ch == '\\' || ch == '/';
+        }
+    }
+
     private class LoggerField {
         private String defaultLabel;
         private String renderedLabel;
@@ -88,6 +101,7 @@ public class JsonLayout extends Layout {
         final LoggerField ndc = loggerfield("ndc");
         final LoggerField host = loggerfield("host");
         final LoggerField path = loggerfield("path");
+        final LoggerField sampleRate = loggerfield("sampleRate");
         final LoggerField tags = loggerfield("tags");
         final LoggerField timestamp = loggerfield("@timestamp");
         final LoggerField thread = loggerfield("thread");
@@ -146,179 +160,418 @@ public class JsonLayout extends Layout {
     private String fieldsVal;
     private String includedFields;
     private String excludedFields;
+    private String mdcIncludedKeysVal;
+    private String mdcExcludedKeysVal;
     private String[] renamedFieldLabels;
+    private String timestampPrecisionVal;
+    private volatile boolean timestampAsEpochMillis;
+    private int exceptionCacheSize;
+    private volatile boolean structuredStacktrace;
+    private volatile int maxStacktraceFrames;
+    private volatile int maxStacktraceLength;
+
+    /**
+     * Initial capacity of the per-thread encoding buffer
+     */
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    /**
+     * Buffers grown above this size by a huge event are dropped after the event is
+     * rendered, so that every logging thread does not pin the largest event it has ever seen
+     */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 32 * 1024;
+
+    /**
+     * Mutable state needed to render a single event. Every thread gets its own instance,
+     * so {@link #format(LoggingEvent)} does not need any external synchronization.
+     */
+    private static final class EncodingState {
+        final StringBuilder buf = new StringBuilder(INITIAL_BUFFER_SIZE);
+        final TimestampEncoder timestampEncoder = new TimestampEncoder();
+        byte[] bytes = new byte[INITIAL_BUFFER_SIZE * 3];
+        boolean busy;
+    }
 
     private final Map<String, String> fields;
-    private RenderedFieldLabels renderedFieldLabels = new RenderedFieldLabels();
-
-    private final DateFormat dateFormat;
-    private final Date date;
-    private final StringBuilder buf;
-
-    private String[] tags;
-    private String path;
-    private boolean pathResolved;
-    private String hostName;
-    private boolean ignoresThrowable;
+    private volatile RenderedFieldLabels renderedFieldLabels = new RenderedFieldLabels();
+    private volatile FieldWriter[] plan;
+    /**
+     * Set by the setters, so that an option changed without {@link #activateOptions()}
+     * is applied on the next event
+     */
+    private volatile boolean optionsChanged;
+
+    private final ThreadLocal<EncodingState> encodingState = new ThreadLocal<EncodingState>() {
+        @Override
+        protected EncodingState initialValue() {
+            return new EncodingState();
+        }
+    };
+
+    private volatile String[] tags;
+    private volatile String path;
+    private volatile boolean pathResolved;
+    private volatile Appender appender;
+    private volatile boolean appenderResolved;
+    private volatile String hostName;
+    private volatile boolean ignoresThrowable;
+    private volatile int timestampPrecision = TimestampEncoder.MILLIS;
+    private volatile ExceptionCache exceptionCache;
+    private volatile String[] mdcIncludedKeys;
+    private volatile Set<String> mdcExcludedKeys = Collections.emptySet();
 
     public JsonLayout() {
         fields = new HashMap<String, String>();
-
-        dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
-        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
-
-        date = new Date();
-        buf = new StringBuilder(32*1024);
+        plan = compilePlan(renderedFieldLabels);
     }
 
     @Override
     public String format(LoggingEvent event) {
-        buf.setLength(0);
-
-        buf.append('{');
-
-        boolean hasPrevField = false;
-        if (renderedFieldLabels.exception.isEnabled) {
-            hasPrevField = appendException(buf, event);
+        EncodingState state = acquireState();
+        try {
+            render(state, event);
+            return state.buf.toString();
+        } finally {
+            releaseState(state);
         }
+    }
 
-        if (hasPrevField) {
-            buf.append(',');
+    /**
+     * Renders the event as UTF-8 directly into a per-thread byte buffer and hands it
+     * to the stream with a single write, without creating an intermediate String.
+     *
+     * @return the number of bytes written
+     */
+    public int format(LoggingEvent event, OutputStream out) throws IOException {
+        EncodingState state = acquireState();
+        try {
+            render(state, event);
+            int len = encodeUtf8(state);
+            out.write(state.bytes, 0, len);
+            return len;
+        } finally {
+            releaseState(state);
         }
-        hasPrevField = appendFields(buf, event);
+    }
 
-        if (renderedFieldLabels.level.isEnabled) {
-            if (hasPrevField) {
-                buf.append(',');
-            }
-            appendField(buf, renderedFieldLabels.level.renderedLabel, event.getLevel().toString());
-            hasPrevField = true;
+    private EncodingState acquireState() {
+        EncodingState state = encodingState.get();
+        if (state.busy) {
+            // format() was re-entered on this thread, e.g. from a message's toString();
+            // the outer call still owns the cached state, so use a throw-away one
+            return new EncodingState();
         }
+        state.busy = true;
+        return state;
+    }
 
-        if (renderedFieldLabels.location.isEnabled) {
-            if (hasPrevField) {
-                buf.append(',');
-            }
-            hasPrevField = appendLocation(buf, event);
+    private void releaseState(EncodingState state) {
+        if (state != encodingState.get()) {
+            return;
         }
-
-        if (renderedFieldLabels.logger.isEnabled) {
-            if (hasPrevField) {
-                buf.append(',');
-            }
-            appendField(buf, renderedFieldLabels.logger.renderedLabel, event.getLoggerName());
-            hasPrevField = true;
+        state.busy = false;
+        if (state.buf.capacity() > MAX_RETAINED_BUFFER_SIZE || state.bytes.length > MAX_RETAINED_BUFFER_SIZE * 3) {
+            encodingState.remove();
         }
+    }
 
-        if (renderedFieldLabels.message.isEnabled) {
-            if (hasPrevField) {
-                buf.append(',');
-            }
-            appendField(buf, renderedFieldLabels.message.renderedLabel, event.getRenderedMessage());
-            hasPrevField = true;
+    private static int encodeUtf8(EncodingState state) {
+        final StringBuilder buf = state.buf;
+        final int len = buf.length();
+        // a char never takes more than 3 bytes, a surrogate pair takes 4 bytes for 2 chars
+        if (state.bytes.length < len * 3) {
+            state.bytes = new byte[len * 3];
         }
-
-        if (renderedFieldLabels.mdc.isEnabled) {
-            if (hasPrevField) {
-                buf.append(',');
+        final byte[] bytes = state.bytes;
+
+        int pos = 0;
+        for (int i = 0; i < len; i++) {
+            char ch = buf.charAt(i);
+            if (ch < 0x80) {
+                bytes[pos++] = (byte) ch;
+            } else if (ch < 0x800) {
+                bytes[pos++] = (byte) (0xC0 | (ch >> 6));
+                bytes[pos++] = (byte) (0x80 | (ch & 0x3F));
+            } else if (Character.isHighSurrogate(ch) && i + 1 < len && Character.isLowSurrogate(buf.charAt(i + 1))) {
+                int cp = Character.toCodePoint(ch, buf.charAt(++i));
+                bytes[pos++] = (byte) (0xF0 | (cp >> 18));
+                bytes[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                bytes[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                bytes[pos++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isHighSurrogate(ch) || Character.isLowSurrogate(ch)) {
+                // unpaired surrogate, replaced the same way as the JDK's UTF-8 encoder does
+                bytes[pos++] = (byte) '?';
+            } else {
+                bytes[pos++] = (byte) (0xE0 | (ch >> 12));
+                bytes[pos++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+                bytes[pos++] = (byte) (0x80 | (ch & 0x3F));
             }
-            hasPrevField = appendMDC(buf, event);
         }
+        return pos;
+    }
 
-        if (renderedFieldLabels.ndc.isEnabled) {
-            String ndc = event.getNDC();
-            if (ndc != null && !ndc.isEmpty()) {
-                if (hasPrevField) {
-                    buf.append(',');
-                }
-                appendField(buf, renderedFieldLabels.ndc.renderedLabel, event.getNDC());
-                hasPrevField = true;
-            }
+    private void render(EncodingState state, LoggingEvent event) {
+        applyChangedOptions();
+        final FieldWriter[] plan = this.plan;
+        final StringBuilder buf = state.buf;
+        buf.setLength(0);
+
+        for (FieldWriter writer : plan) {
+            writer.write(state, event);
         }
+        openObject(buf, 0);
+        buf.append("}\n");
+    }
 
-        if (renderedFieldLabels.host.isEnabled) {
-            if (hasPrevField) {
-                buf.append(',');
-            }
-            appendField(buf, renderedFieldLabels.host.renderedLabel, hostName);
-            hasPrevField = true;
+    /**
+     * Every field is written with a leading comma, so the comma of the first field
+     * written since {@code start} becomes the opening brace of the object
+     */
+    private static void openObject(StringBuilder buf, int start) {
+        if (buf.length() == start) {
+            buf.append('{');
+        } else {
+            buf.setCharAt(start, '{');
         }
+    }
 
-        if (renderedFieldLabels.path.isEnabled) {
-            if (hasPrevField) {
-                buf.append(',');
-            }
-            hasPrevField = appendSourcePath(buf, event);
+    /**
+     * @return {@code ,"label":} with the label escaped
+     */
+    private static String namePrefix(String label) {
+        StringBuilder sb = new StringBuilder(label.length() + 4);
+        sb.append(",\"");
+        appendValue(sb, label);
+        sb.append("\":");
+        return sb.toString();
+    }
+
+    /**
+     * @return {@code ,"label":"} if the field is enabled, null otherwise
+     */
+    private static String stringPrefix(LoggerField field) {
+        return field.isEnabled ? namePrefix(field.renderedLabel) + '"' : null;
+    }
+
+    /**
+     * Renders one top-level field. The writers are compiled from the configuration
+     * by {@link #compilePlan}, with their names escaped and quoted up front.
+     */
+    private abstract static class FieldWriter {
+        final String prefix;
+
+        FieldWriter(String prefix) {
+            this.prefix = prefix;
         }
 
-        if (renderedFieldLabels.tags.isEnabled) {
-            if (hasPrevField) {
-                buf.append(',');
-            }
-            hasPrevField = appendTags(buf, event);
+        abstract void write(EncodingState state, LoggingEvent event);
+    }
+
+    private abstract static class StringFieldWriter extends FieldWriter {
+        StringFieldWriter(LoggerField field) {
+            super(stringPrefix(field));
         }
 
-        if (renderedFieldLabels.timestamp.isEnabled) {
-            if (hasPrevField) {
-                buf.append(',');
-            }
-            date.setTime(event.getTimeStamp());
-            appendField(buf, renderedFieldLabels.timestamp.renderedLabel, dateFormat.format(date));
-            hasPrevField = true;
+        abstract String value(LoggingEvent event);
+
+        @Override
+        void write(EncodingState state, LoggingEvent event) {
+            StringBuilder buf = state.buf;
+            buf.append(prefix);
+            appendValue(buf, String.valueOf(value(event)));
+            buf.append('"');
         }
+    }
 
-        if (renderedFieldLabels.thread.isEnabled) {
-            if (hasPrevField) {
-                buf.append(',');
+    private FieldWriter[] compilePlan(RenderedFieldLabels labels) {
+        List<FieldWriter> plan = new ArrayList<FieldWriter>();
+
+        if (labels.exception.isEnabled) {
+            plan.add(new ExceptionWriter(labels, exceptionCache, structuredStacktrace, maxStacktraceFrames, maxStacktraceLength));
+        }
+        final String staticFields = renderStaticFields(labels);
+        if (staticFields.length() != 0) {
+            plan.add(new FieldWriter(staticFields) {
+                @Override
+                void write(EncodingState state, LoggingEvent event) {
+                    state.buf.append(prefix);
+                }
+            });
+        }
+        if (labels.level.isEnabled) {
+            plan.add(new StringFieldWriter(labels.level) {
+                @Override
+                String value(LoggingEvent event) {
+                    return event.getLevel().toString();
+                }
+            });
+        }
+        if (labels.location.isEnabled) {
+            plan.add(new LocationWriter(labels));
+        }
+        if (labels.logger.isEnabled) {
+            plan.add(new StringFieldWriter(labels.logger) {
+                @Override
+                String value(LoggingEvent event) {
+                    return event.getLoggerName();
+                }
+            });
+        }
+        if (labels.message.isEnabled) {
+            plan.add(new StringFieldWriter(labels.message) {
+                @Override
+                String value(LoggingEvent event) {
+                    return event.getRenderedMessage();
+                }
+            });
+        }
+        if (labels.mdc.isEnabled) {
+            final Set<String> excluded = new HashSet<String>(mdcExcludedKeys);
+            final String[] included = mdcIncludedKeys;
+            if (included != null) {
+                plan.add(new IncludedMDCWriter(namePrefix(labels.mdc.renderedLabel), included, excluded));
+            } else {
+                plan.add(new FieldWriter(namePrefix(labels.mdc.renderedLabel)) {
+                    @Override
+                    void write(EncodingState state, LoggingEvent event) {
+                        appendMDC(state.buf, prefix, event, excluded);
+                    }
+                });
             }
-            appendField(buf, renderedFieldLabels.thread.renderedLabel, event.getThreadName());
-            hasPrevField = true;
         }
-
-        if (renderedFieldLabels.version.isEnabled) {
-            if (hasPrevField) {
-                buf.append(',');
+        if (labels.ndc.isEnabled) {
+            plan.add(new FieldWriter(stringPrefix(labels.ndc)) {
+                @Override
+                void write(EncodingState state, LoggingEvent event) {
+                    String ndc = event.getNDC();
+                    if (ndc != null && !ndc.isEmpty()) {
+                        state.buf.append(prefix);
+                        appendValue(state.buf, ndc);
+                        state.buf.append('"');
+                    }
+                }
+            });
+        }
+        if (labels.path.isEnabled) {
+            plan.add(new FieldWriter(stringPrefix(labels.path)) {
+                @Override
+                void write(EncodingState state, LoggingEvent event) {
+                    String path = resolveSourcePath(event);
+                    if (path != null) {
+                        state.buf.append(prefix);
+                        appendValue(state.buf, path);
+                        state.buf.append('"');
+                    }
+                }
+            });
+        }
+        if (labels.sampleRate.isEnabled) {
+            plan.add(new FieldWriter(namePrefix(labels.sampleRate.renderedLabel)) {
+                @Override
+                void write(EncodingState state, LoggingEvent event) {
+                    Appender appender = resolveAppender(event);
+                    String rate = appender != null ? SamplingFilter.takeMarkedRate(appender.getFilter(), event) : null;
+                    if (rate != null) {
+                        state.buf.append(prefix);
+                        appendNumber(state.buf, rate);
+                    }
+                }
+            });
+        }
+        if (labels.timestamp.isEnabled) {
+            final int precision = timestampPrecision;
+            if (timestampAsEpochMillis) {
+                plan.add(new FieldWriter(namePrefix(labels.timestamp.renderedLabel)) {
+                    @Override
+                    void write(EncodingState state, LoggingEvent event) {
+                        state.buf.append(prefix);
+                        TimestampEncoder.appendEpochMillis(state.buf, event.getTimeStamp());
+                    }
+                });
+            } else {
+                plan.add(new FieldWriter(stringPrefix(labels.timestamp)) {
+                    @Override
+                    void write(EncodingState state, LoggingEvent event) {
+                        state.buf.append(prefix);
+                        state.timestampEncoder.appendIso(state.buf, event.getTimeStamp(), precision);
+                        state.buf.append('"');
+                    }
+                });
             }
-            appendField(buf, renderedFieldLabels.version.renderedLabel, VERSION);
         }
-
-        buf.append("}\n");
-
-        return buf.toString();
+        if (labels.thread.isEnabled) {
+            plan.add(new StringFieldWriter(labels.thread) {
+                @Override
+                String value(LoggingEvent event) {
+                    return event.getThreadName();
+                }
+            });
+        }
+        return plan.toArray(new FieldWriter[plan.size()]);
     }
 
-    @SuppressWarnings("UnusedParameters")
-    private boolean appendFields(StringBuilder buf, LoggingEvent event) {
-        if (fields.isEmpty()) {
-            return false;
+    /**
+     * Renders the fields which only change when the options are applied: the configured
+     * {@code fields}, {@code host}, {@code tags} and {@code @version}. They are spliced into
+     * every event as a single pre-escaped fragment.
+     */
+    private String renderStaticFields(RenderedFieldLabels labels) {
+        StringBuilder buf = new StringBuilder();
+        appendFields(buf);
+        if (labels.host.isEnabled) {
+            appendOptional(buf, stringPrefix(labels.host), String.valueOf(hostName));
         }
-
-        for (Iterator<Map.Entry<String, String>> iter = fields.entrySet().iterator(); iter.hasNext(); ) {
-            Map.Entry<String, String> entry = iter.next();
-            appendField(buf, entry.getKey(), entry.getValue());
-            if (iter.hasNext()) {
-                buf.append(',');
-            }
+        if (labels.tags.isEnabled) {
+            appendTags(buf, namePrefix(labels.tags.renderedLabel));
         }
+        if (labels.version.isEnabled) {
+            appendOptional(buf, stringPrefix(labels.version), VERSION);
+        }
+        return buf.toString();
+    }
 
-        return true;
+    private void appendFields(StringBuilder buf) {
+        for (Map.Entry<String, String> entry : fields.entrySet()) {
+            buf.append(",\"");
+            appendValue(buf, entry.getKey());
+            buf.append("\":\"");
+            appendValue(buf, String.valueOf(entry.getValue()));
+            buf.append('"');
+        }
     }
 
-    private boolean appendSourcePath(StringBuilder buf, LoggingEvent event) {
+    private String resolveSourcePath(LoggingEvent event) {
         if (!pathResolved) {
-            @SuppressWarnings("unchecked")
-            Appender appender = findLayoutAppender(event.getLogger());
+            Appender appender = resolveAppender(event);
             if (appender instanceof FileAppender) {
                 FileAppender fileAppender = (FileAppender) appender;
                 path = getAppenderPath(fileAppender);
             }
             pathResolved = true;
         }
-        if (path != null) {
-            appendField(buf, renderedFieldLabels.path.renderedLabel, path);
-            return true;
+        return path;
+    }
+
+    /**
+     * Lets a file appender tell its path up front, so that the layout does not need to
+     * look itself up in the logger hierarchy, which takes the loggers' locks
+     */
+    void resolveSourcePath(FileAppender appender) {
+        path = getAppenderPath(appender);
+        pathResolved = true;
+        this.appender = appender;
+        appenderResolved = true;
+    }
+
+    /**
+     * @return the appender this layout belongs to, or null if it is not found
+     */
+    private Appender resolveAppender(LoggingEvent event) {
+        if (!appenderResolved) {
+            appender = findLayoutAppender(event.getLogger());
+            appenderResolved = true;
         }
-        return false;
+        return appender;
     }
 
     private Appender findLayoutAppender(Category logger) {
@@ -341,7 +594,7 @@ public class JsonLayout extends Layout {
         while (appenders.hasMoreElements()) {
             Appender appender = appenders.nextElement();
             // get the first appender with this layout instance and ignore others;
-            // actually a single instance of this class is not intended to be used with multiple threads.
+            // actually a single instance of this class is not intended to be shared between appenders.
             if (appender.getLayout() == this) {
                 return appender;
             }
@@ -366,152 +619,298 @@ public class JsonLayout extends Layout {
         return path;
     }
 
-    @SuppressWarnings("UnusedParameters")
-    private boolean appendTags(StringBuilder builder, LoggingEvent event) {
+    private void appendTags(StringBuilder buf, String prefix) {
+        String[] tags = this.tags;
         if (tags == null || tags.length == 0) {
-            return false;
+            return;
         }
 
-        appendQuotedName(builder, renderedFieldLabels.tags.renderedLabel);
-        builder.append(":[");
+        buf.append(prefix).append('[');
         for (int i = 0, len = tags.length; i < len; i++) {
-            appendQuotedValue(builder, tags[i]);
+            appendQuotedValue(buf, tags[i]);
             if (i != len - 1) {
-                builder.append(',');
+                buf.append(',');
             }
         }
-        builder.append(']');
-
-        return true;
+        buf.append(']');
     }
 
-    private boolean appendMDC(StringBuilder buf, LoggingEvent event) {
+    private static void appendMDC(StringBuilder buf, String prefix, LoggingEvent event, Set<String> excluded) {
         Map<?, ?> entries = event.getProperties();
         if (entries.isEmpty()) {
-            return false;
+            return;
         }
 
-        appendQuotedName(buf, renderedFieldLabels.mdc.renderedLabel);
-        buf.append(":{");
-
-        for (Iterator<? extends Map.Entry<?, ?>> iter = entries.entrySet().iterator(); iter.hasNext(); ) {
-            Map.Entry<?, ?> entry = iter.next();
-            appendField(buf, entry.getKey(), entry.getValue());
-            if (iter.hasNext()) {
-                buf.append(',');
+        buf.append(prefix);
+        int start = buf.length();
+        for (Map.Entry<?, ?> entry : entries.entrySet()) {
+            if (!excluded.isEmpty() && excluded.contains(entry.getKey())) {
+                continue;
             }
+            buf.append(",\"");
+            appendValue(buf, String.valueOf(entry.getKey()));
+            buf.append("\":\"");
+            appendValue(buf, String.valueOf(entry.getValue()));
+            buf.append('"');
         }
-        buf.append('}');
-
-        return true;
+        closeMDC(buf, prefix, start);
     }
 
-    private boolean appendLocation(StringBuilder buf, LoggingEvent event) {
-        LocationInfo locationInfo = event.getLocationInformation();
-        if (locationInfo == null) {
-            return false;
+    /**
+     * Closes the object opened by {@code prefix} at {@code start}, or removes the prefix
+     * if no entry was appended after it, e.g. all of them were excluded
+     */
+    private static void closeMDC(StringBuilder buf, String prefix, int start) {
+        if (buf.length() == start) {
+            buf.setLength(start - prefix.length());
+            return;
         }
+        openObject(buf, start);
+        buf.append('}');
+    }
 
-        boolean hasPrevField = false;
+    /**
+     * Renders only the configured {@code mdcIncludedKeys}. Each key is looked up with
+     * {@link LoggingEvent#getMDC(String)}, so unlike {@link LoggingEvent#getProperties()}
+     * the MDC of the thread is not copied, and the key names are escaped once up front.
+     */
+    private static final class IncludedMDCWriter extends FieldWriter {
+        private final String[] keys;
+        private final String[] keyPrefixes;
+
+        IncludedMDCWriter(String prefix, String[] included, Set<String> excluded) {
+            super(prefix);
+            List<String> keys = new ArrayList<String>(included.length);
+            for (String key : included) {
+                if (!excluded.contains(key) && !keys.contains(key)) {
+                    keys.add(key);
+                }
+            }
+            this.keys = keys.toArray(new String[keys.size()]);
+            this.keyPrefixes = new String[this.keys.length];
+            for (int i = 0; i < this.keys.length; i++) {
+                StringBuilder keyPrefix = new StringBuilder(",\"");
+                appendValue(keyPrefix, this.keys[i]);
+                this.keyPrefixes[i] = keyPrefix.append("\":\"").toString();
+            }
+        }
 
-        appendQuotedName(buf, renderedFieldLabels.location.renderedLabel);
-        buf.append(":{");
+        @Override
+        void write(EncodingState state, LoggingEvent event) {
+            StringBuilder buf = state.buf;
+            buf.append(prefix);
+            int start = buf.length();
+            for (int i = 0; i < keys.length; i++) {
+                Object value = event.getMDC(keys[i]);
+                if (value != null) {
+                    buf.append(keyPrefixes[i]);
+                    appendValue(buf, value.toString());
+                    buf.append('"');
+                }
+            }
+            closeMDC(buf, prefix, start);
+        }
+    }
 
-        String className = locationInfo.getClassName();
-        if (className != null) {
-            appendField(buf, renderedFieldLabels.locationClass.renderedLabel, className);
-            hasPrevField = true;
+    /**
+     * Renders the location of the caller. While the event is being logged the caller frame is taken
+     * from the current stack by {@link LocationResolver}, otherwise from the event's {@link LocationInfo}.
+     * The rendered fragments are cached per call site.
+     */
+    private static final class LocationWriter extends FieldWriter {
+        private static final int MAX_CACHED_LOCATIONS = 4096;
+
+        private final String classPrefix;
+        private final String filePrefix;
+        private final String methodPrefix;
+        private final String linePrefix;
+        private final ConcurrentMap<Object, String> fragments = new ConcurrentHashMap<Object, String>();
+
+        LocationWriter(RenderedFieldLabels labels) {
+            super(namePrefix(labels.location.renderedLabel));
+            classPrefix = stringPrefix(labels.locationClass);
+            filePrefix = stringPrefix(labels.locationFile);
+            methodPrefix = stringPrefix(labels.locationMethod);
+            linePrefix = stringPrefix(labels.locationLine);
         }
 
-        String fileName = locationInfo.getFileName();
-        if (fileName != null) {
-            if (hasPrevField) {
-                buf.append(',');
+        @Override
+        void write(EncodingState state, LoggingEvent event) {
+            StackTraceElement caller = LocationResolver.findCaller(event);
+            if (caller != null) {
+                String fragment = fragments.get(caller);
+                if (fragment == null) {
+                    fragment = cache(caller, render(caller.getClassName(), LocationResolver.fileName(caller),
+                        caller.getMethodName(), LocationResolver.lineNumber(caller)));
+                }
+                state.buf.append(fragment);
+                return;
             }
-            appendField(buf, renderedFieldLabels.locationFile.renderedLabel, fileName);
-            hasPrevField = true;
-        }
 
-        String methodName = locationInfo.getMethodName();
-        if (methodName != null) {
-            if (hasPrevField) {
-                buf.append(',');
+            LocationInfo locationInfo = event.getLocationInformation();
+            if (locationInfo == null) {
+                return;
+            }
+            // fullInfo is missing when log4j could not find the caller
+            String callSite = locationInfo.fullInfo;
+            String fragment = callSite != null ? fragments.get(callSite) : null;
+            if (fragment == null) {
+                fragment = render(locationInfo.getClassName(), locationInfo.getFileName(),
+                    locationInfo.getMethodName(), locationInfo.getLineNumber());
+                if (callSite != null) {
+                    cache(callSite, fragment);
+                }
             }
-            appendField(buf, renderedFieldLabels.locationMethod.renderedLabel, methodName);
-            hasPrevField = true;
+            state.buf.append(fragment);
         }
 
-        String lineNum = locationInfo.getLineNumber();
-        if (lineNum != null) {
-            if (hasPrevField) {
-                buf.append(',');
+        private String cache(Object callSite, String fragment) {
+            if (fragments.size() >= MAX_CACHED_LOCATIONS) {
+                // generated code may produce an unbounded number of call sites
+                fragments.clear();
             }
-            appendField(buf, renderedFieldLabels.locationLine.renderedLabel, lineNum);
+            fragments.put(callSite, fragment);
+            return fragment;
         }
 
-        buf.append('}');
-
-        return true;
+        private String render(String className, String fileName, String methodName, String lineNumber) {
+            StringBuilder buf = new StringBuilder(prefix.length() + 128);
+            buf.append(prefix);
+            int start = buf.length();
+            appendOptional(buf, classPrefix, className);
+            appendOptional(buf, filePrefix, fileName);
+            appendOptional(buf, methodPrefix, methodName);
+            appendOptional(buf, linePrefix, lineNumber);
+            openObject(buf, start);
+            buf.append('}');
+            return buf.toString();
+        }
     }
 
-    private boolean appendException(StringBuilder buf, LoggingEvent event) {
-        ThrowableInformation throwableInfo = event.getThrowableInformation();
-        if (throwableInfo == null) {
-            return false;
+    private static final class ExceptionWriter extends FieldWriter {
+        private final String messagePrefix;
+        private final String classPrefix;
+        private final String stacktracePrefix;
+        private final ExceptionCache cache;
+        private final boolean structured;
+        private final int maxFrames;
+        private final int maxLength;
+
+        ExceptionWriter(RenderedFieldLabels labels, ExceptionCache cache, boolean structured, int maxFrames, int maxLength) {
+            super(namePrefix(labels.exception.renderedLabel));
+            messagePrefix = stringPrefix(labels.exceptionMessage);
+            classPrefix = stringPrefix(labels.exceptionClass);
+            stacktracePrefix = labels.exceptionStacktrace.isEnabled ? namePrefix(labels.exceptionStacktrace.renderedLabel) : null;
+            this.cache = cache;
+            this.structured = structured;
+            this.maxFrames = maxFrames;
+            this.maxLength = maxLength;
         }
 
-        appendQuotedName(buf, renderedFieldLabels.exception.renderedLabel);
-        buf.append(":{");
+        @Override
+        void write(EncodingState state, LoggingEvent event) {
+            ThrowableInformation throwableInfo = event.getThrowableInformation();
+            if (throwableInfo == null) {
+                return;
+            }
 
-        boolean hasPrevField = false;
+            StringBuilder buf = state.buf;
+            buf.append(prefix);
+            int start = buf.length();
 
-        @SuppressWarnings("ThrowableResultOfMethodCallIgnored")
-        Throwable throwable = throwableInfo.getThrowable();
-        if (throwable != null) {
-            String message = throwable.getMessage();
-            if (message != null) {
-                appendField(buf, renderedFieldLabels.exceptionMessage.renderedLabel, message);
-                hasPrevField = true;
+            @SuppressWarnings("ThrowableResultOfMethodCallIgnored")
+            Throwable throwable = throwableInfo.getThrowable();
+            if (throwable != null) {
+                appendOptional(buf, messagePrefix, throwable.getMessage());
+                appendOptional(buf, classPrefix, throwable.getClass().getCanonicalName());
             }
 
-            String className = throwable.getClass().getCanonicalName();
-            if (className != null) {
-                if (hasPrevField) {
-                    buf.append(',');
+            if (stacktracePrefix != null) {
+                ExceptionCache.Key key = cache != null && throwable != null ? ExceptionCache.keyOf(throwable) : null;
+                String cached = key != null ? cache.get(key) : null;
+                if (cached != null) {
+                    buf.append(stacktracePrefix).append(cached);
+                } else {
+                    int valueStart = buf.length() + stacktracePrefix.length();
+                    if (appendStackTrace(buf, throwableInfo, throwable) && key != null) {
+                        cache.put(key, buf.substring(valueStart));
+                    }
                 }
-                appendField(buf, renderedFieldLabels.exceptionClass.renderedLabel, className);
-                hasPrevField = true;
             }
+
+            openObject(buf, start);
+            buf.append('}');
         }
 
-        String[] stackTrace = throwableInfo.getThrowableStrRep();
-        if (stackTrace != null && stackTrace.length != 0) {
-            if (hasPrevField) {
-                buf.append(',');
+        /**
+         * @return false if there is no stack trace to append
+         */
+        private boolean appendStackTrace(StringBuilder buf, ThrowableInformation throwableInfo, Throwable throwable) {
+            if (structured && throwable != null) {
+                buf.append(stacktracePrefix);
+                StructuredStackTrace.append(buf, throwable, maxFrames, maxLength);
+                return true;
             }
-            appendQuotedName(buf, renderedFieldLabels.exceptionStacktrace.renderedLabel);
-            buf.append(":\"");
+
+            // the string form is also used for deserialized events, which carry no Throwable
+            String[] stackTrace = throwableInfo.getThrowableStrRep();
+            if (stackTrace == null || stackTrace.length == 0) {
+                return false;
+            }
+            buf.append(stacktracePrefix).append('"');
             for (int i = 0, len = stackTrace.length; i < len; i++) {
                 appendValue(buf, stackTrace[i]);
                 if (i != len - 1) {
                     appendChar(buf, '\n');
                 }
             }
-            buf.append('\"');
+            buf.append('"');
+            return true;
         }
+    }
 
-        buf.append('}');
+    /**
+     * Appends a string field unless the field is disabled ({@code prefix} is null) or the value is missing
+     */
+    private static void appendOptional(StringBuilder buf, String prefix, String value) {
+        if (prefix != null && value != null) {
+            buf.append(prefix);
+            appendValue(buf, value);
+            buf.append('"');
+        }
+    }
 
-        return true;
+    /**
+     * Tells asynchronous appenders to resolve the location on the logging thread,
+     * where the caller is still on the stack
+     */
+    boolean requiresLocationInfo() {
+        applyChangedOptions();
+        return renderedFieldLabels.location.isEnabled;
     }
 
     @Override
     public boolean ignoresThrowable() {
+        applyChangedOptions();
         return ignoresThrowable;
     }
 
-    public void activateOptions() {
-        renderedFieldLabels = new RenderedFieldLabels();
+    private void applyChangedOptions() {
+        if (optionsChanged) {
+            synchronized (this) {
+                if (optionsChanged) {
+                    activateOptions();
+                }
+            }
+        }
+    }
+
+    public synchronized void activateOptions() {
+        // the setters called from now on are applied on the next event
+        optionsChanged = false;
+        // configure a fresh instance and publish it at the end, so that concurrent
+        // format() calls never observe a half-applied configuration
+        RenderedFieldLabels renderedFieldLabels = new RenderedFieldLabels();
 
         if (includedFields != null) {
             String[] included = SEP_PATTERN.split(includedFields);
@@ -538,12 +937,22 @@ public class JsonLayout extends Layout {
             tags = SEP_PATTERN.split(tagsVal);
         }
         if (fieldsVal != null) {
+            // only read by compilePlan() below
+            this.fields.clear();
             String[] fields = SEP_PATTERN.split(fieldsVal);
             for (String fieldVal : fields) {
                 String[] field = PAIR_SEP_PATTERN.split(fieldVal);
                 this.fields.put(field[0], field[1]);
             }
         }
+        if (timestampPrecisionVal == null || "millis".equalsIgnoreCase(timestampPrecisionVal.trim())) {
+            timestampPrecision = TimestampEncoder.MILLIS;
+        } else if ("micros".equalsIgnoreCase(timestampPrecisionVal.trim())) {
+            timestampPrecision = TimestampEncoder.MICROS;
+        } else {
+            LogLog.warn("Unknown timestampPrecision '" + timestampPrecisionVal + "', using millis");
+            timestampPrecision = TimestampEncoder.MILLIS;
+        }
         if (hostName == null) {
             try {
                 hostName = InetAddress.getLocalHost().getHostName();
@@ -552,7 +961,19 @@ public class JsonLayout extends Layout {
                 LogLog.error("Unable to determine name of the localhost", e);
             }
         }
+        mdcIncludedKeys = mdcIncludedKeysVal != null ? splitKeys(mdcIncludedKeysVal) : null;
+        mdcExcludedKeys = mdcExcludedKeysVal != null
+            ? new HashSet<String>(Arrays.asList(splitKeys(mdcExcludedKeysVal)))
+            : Collections.<String>emptySet();
         ignoresThrowable = !renderedFieldLabels.exception.isEnabled;
+        exceptionCache = exceptionCacheSize > 0 ? new ExceptionCache(exceptionCacheSize) : null;
+        this.plan = compilePlan(renderedFieldLabels);
+        this.renderedFieldLabels = renderedFieldLabels;
+    }
+
+    private static String[] splitKeys(String keys) {
+        String trimmed = keys.trim();
+        return trimmed.isEmpty() ? new String[0] : SEP_PATTERN.split(trimmed);
     }
 
     @Override
@@ -560,31 +981,95 @@ public class JsonLayout extends Layout {
         return "application/json";
     }
 
-    private void appendQuotedName(StringBuilder out, Object name) {
-        out.append('\"');
-        appendValue(out, String.valueOf(name));
-        out.append('\"');
+    /**
+     * Writes the value as a JSON number if it looks like one, as a string otherwise
+     */
+    private static void appendNumber(StringBuilder out, String val) {
+        if (isJsonNumber(val)) {
+            out.append(val);
+        } else {
+            appendQuotedValue(out, val);
+        }
+    }
+
+    /**
+     * @return true if the value matches {@code -?(0|[1-9][0-9]*)(\.[0-9]+)?([eE][+-]?[0-9]+)?}
+     */
+    static boolean isJsonNumber(String val) {
+        int i = 0;
+        final int len = val.length();
+        if (i < len && val.charAt(i) == '-') {
+            i++;
+        }
+        if (i >= len) {
+            return false;
+        }
+        if (val.charAt(i) == '0') {
+            i++;
+        } else if (isDigit(val, i)) {
+            i = skipDigits(val, i);
+        } else {
+            return false;
+        }
+        if (i < len && val.charAt(i) == '.') {
+            final int fraction = ++i;
+            i = skipDigits(val, i);
+            if (i == fraction) {
+                return false;
+            }
+        }
+        if (i < len && (val.charAt(i) == 'e' || val.charAt(i) == 'E')) {
+            i++;
+            if (i < len && (val.charAt(i) == '+' || val.charAt(i) == '-')) {
+                i++;
+            }
+            final int exponent = i;
+            i = skipDigits(val, i);
+            if (i == exponent) {
+                return false;
+            }
+        }
+        return i == len;
     }
 
-    private void appendQuotedValue(StringBuilder out, Object val) {
+    private static int skipDigits(String val, int i) {
+        while (i < val.length() && isDigit(val, i)) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isDigit(String val, int i) {
+        final char ch = val.charAt(i);
+        return '0' <= ch && ch <= '9';
+    }
+
+    private static void appendQuotedValue(StringBuilder out, Object val) {
         out.append('\"');
         appendValue(out, String.valueOf(val));
         out.append('\"');
     }
 
-    private void appendValue(StringBuilder out, String val) {
+    static void appendValue(StringBuilder out, String val) {
+        int start = 0;
         for (int i = 0, len = val.length(); i < len; i++) {
-            appendChar(out, val.charAt(i));
+            char ch = val.charAt(i);
+            if (ch < 0x100 ? ESCAPED_CHARS[ch] : ('\u2000' <= ch && ch <= '\u20FF')) {
+                if (i > start) {
+                    out.append(val, start, i);
+                }
+                appendChar(out, ch);
+                start = i + 1;
+            }
+        }
+        if (start == 0) {
+            out.append(val);
+        } else if (start < val.length()) {
+            out.append(val, start, val.length());
         }
     }
 
-    private void appendField(StringBuilder out, Object name, Object val) {
-        appendQuotedName(out, name);
-        out.append(':');
-        appendQuotedValue(out, val);
-    }
-
-    private void appendChar(StringBuilder out, char ch) {
+    private static void appendChar(StringBuilder out, char ch) {
         switch (ch) {
             case '"':
                 out.append("\\\"");
@@ -626,25 +1111,120 @@ public class JsonLayout extends Layout {
 
     public void setTags(String tags) {
         this.tagsVal = tags;
+        optionsChanged = true;
     }
 
     public void setFields(String fields) {
         this.fieldsVal = fields;
+        optionsChanged = true;
     }
 
     public void setIncludedFields(String includedFields) {
         this.includedFields = includedFields;
+        optionsChanged = true;
     }
 
     public void setExcludedFields(String excludedFields) {
         this.excludedFields = excludedFields;
+        optionsChanged = true;
+    }
+
+    /**
+     * Comma separated MDC keys to render, all keys are rendered if not set.
+     * <p/>
+     * Only these keys are looked up in the MDC, so the MDC of the logging thread is not copied
+     * for every event. Keys missing from the MDC are left out.
+     */
+    public void setMdcIncludedKeys(String mdcIncludedKeys) {
+        this.mdcIncludedKeysVal = mdcIncludedKeys;
+        optionsChanged = true;
+    }
+
+    /**
+     * Comma separated MDC keys to leave out, applied after {@link #setMdcIncludedKeys}
+     */
+    public void setMdcExcludedKeys(String mdcExcludedKeys) {
+        this.mdcExcludedKeysVal = mdcExcludedKeys;
+        optionsChanged = true;
     }
 
     public void setHostName(String hostName) {
         this.hostName = hostName;
+        optionsChanged = true;
+    }
+
+    /**
+     * Number of fraction digits in {@code @timestamp}: {@code millis} (default) or {@code micros}
+     */
+    public void setTimestampPrecision(String timestampPrecision) {
+        this.timestampPrecisionVal = timestampPrecision;
+        optionsChanged = true;
+    }
+
+    /**
+     * Renders {@code @timestamp} as a number of milliseconds since the epoch instead of an ISO-8601 string
+     */
+    public void setTimestampAsEpochMillis(boolean timestampAsEpochMillis) {
+        this.timestampAsEpochMillis = timestampAsEpochMillis;
+        optionsChanged = true;
+    }
+
+    /**
+     * Number of distinct stack traces kept already escaped, 0 (default) disables the cache.
+     * <p/>
+     * Exceptions are matched by the class, {@code toString()} and stack frames of every throwable
+     * in the cause chain. Suppressed exceptions and custom {@code printStackTrace} output are not
+     * taken into account, so the first rendering of such an exception is reused for all its look-alikes.
+     */
+    public void setExceptionCacheSize(int exceptionCacheSize) {
+        this.exceptionCacheSize = exceptionCacheSize;
+        optionsChanged = true;
+    }
+
+    /**
+     * Renders {@code exception.stacktrace} as a JSON array of lines built from the stack frames
+     * instead of a single string, see {@link #setMaxStacktraceFrames} and {@link #setMaxStacktraceLength}
+     */
+    public void setStructuredStacktrace(boolean structuredStacktrace) {
+        this.structuredStacktrace = structuredStacktrace;
+        optionsChanged = true;
+    }
+
+    /**
+     * Maximum number of frames in a structured stack trace, counted over the whole cause chain,
+     * 0 (default) means no limit
+     */
+    public void setMaxStacktraceFrames(int maxStacktraceFrames) {
+        this.maxStacktraceFrames = maxStacktraceFrames;
+        optionsChanged = true;
+    }
+
+    /**
+     * Maximum number of escaped characters in a structured stack trace, 0 (default) means no limit
+     */
+    public void setMaxStacktraceLength(int maxStacktraceLength) {
+        this.maxStacktraceLength = maxStacktraceLength;
+        optionsChanged = true;
+    }
+
+    /**
+     * @return number of stack traces taken from the exception cache
+     */
+    public long getExceptionCacheHits() {
+        ExceptionCache cache = exceptionCache;
+        return cache != null ? cache.getHitCount() : 0;
+    }
+
+    /**
+     * @return number of stack traces which had to be rendered although the exception cache is enabled
+     */
+    public long getExceptionCacheMisses() {
+        ExceptionCache cache = exceptionCache;
+        return cache != null ? cache.getMissCount() : 0;
     }
 
     public void setRenamedFieldLabels(String renamedFieldLabels) {
         this.renamedFieldLabels = SEP_PATTERN.split(renamedFieldLabels);
+        optionsChanged = true;
     }
 }
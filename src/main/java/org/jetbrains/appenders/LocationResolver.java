@@ -0,0 +1,83 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.appenders;
+
+import org.apache.log4j.spi.LocationInfo;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Finds the frame which called the logger, without going through {@link LocationInfo}.
+ * <p/>
+ * This only works while the event is being logged, i.e. when the logger class is still on the stack
+ * of the current thread. Events formatted later, e.g. by an asynchronous appender, must have their
+ * location resolved by {@link org.apache.log4j.spi.LoggingEvent#getLocationInformation()} on the logging thread.
+ */
+final class LocationResolver {
+    private LocationResolver() {
+    }
+
+    /**
+     * @return the frame which logged the event, or null if the event has a location already,
+     *         e.g. one received from a remote process, or is not being logged on the current thread
+     */
+    static StackTraceElement findCaller(LoggingEvent event) {
+        if (event.locationInformationExists()) {
+            return null;
+        }
+        // a re-dispatched event carries the name of the thread which logged it
+        if (!Thread.currentThread().getName().equals(event.getThreadName())) {
+            return null;
+        }
+        return findCaller(event.fqnOfCategoryClass);
+    }
+
+    /**
+     * @param fqnOfCallingClass the logger class, see {@link org.apache.log4j.spi.LoggingEvent#fqnOfCategoryClass}
+     * @return the frame right below the innermost call of the logger class,
+     *         or null if the logger class is not on the current stack
+     */
+    static StackTraceElement findCaller(String fqnOfCallingClass) {
+        if (fqnOfCallingClass == null) {
+            return null;
+        }
+
+        StackTraceElement[] frames = new Throwable().getStackTrace();
+        for (int i = 0; i < frames.length; i++) {
+            if (fqnOfCallingClass.equals(frames[i].getClassName())) {
+                // skip the logger's own frames, e.g. Category.info() calling Category.forcedLog()
+                while (i + 1 < frames.length && fqnOfCallingClass.equals(frames[i + 1].getClassName())) {
+                    i++;
+                }
+                return i + 1 < frames.length ? frames[i + 1] : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the file name the same way as {@link LocationInfo#getFileName()} renders it
+     */
+    static String fileName(StackTraceElement frame) {
+        String fileName = frame.getFileName();
+        return fileName != null ? fileName : LocationInfo.NA;
+    }
+
+    /**
+     * @return the line number the same way as {@link LocationInfo#getLineNumber()} renders it
+     */
+    static String lineNumber(StackTraceElement frame) {
+        int line = frame.getLineNumber();
+        return line >= 0 ? String.valueOf(line) : LocationInfo.NA;
+    }
+}
@@ -0,0 +1,213 @@
+package org.jetbrains.appenders;
+
+import org.apache.log4j.helpers.LogLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes the file through a memory mapping of a whole segment,
+ * so that writing an event is a copy into the page cache without
+ * a system call.
+ *
+ * The file is extended to the segment size up front and truncated
+ * to the written length on {@link #close()}. If the process dies before that,
+ * the file ends with a region of zero bytes, which {@link #trimTrailingZeros}
+ * removes. That is only safe because this stream is only used with {@link JsonLayout},
+ * which escapes zero bytes, see {@link NextRollingFileAppender#setMemoryMapped}.
+ */
+class MappedOutputStream extends FileOutput {
+  private static final int TRIM_CHUNK_SIZE = 8 * 1024;
+
+  private static final Object UNSAFE;
+  private static final Method UNSAFE_INVOKE_CLEANER;
+  private static final Method DIRECT_BUFFER_CLEANER;
+
+  static {
+    Object unsafe = null;
+    Method invokeCleaner = null;
+    Method cleaner = null;
+    try {
+      // Java 9 and newer
+      final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      unsafe = theUnsafe.get(null);
+    } catch (Exception e) {
+      invokeCleaner = null;
+      try {
+        cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+      } catch (Exception e1) {
+        LogLog.debug("Memory mapped log files are released by the garbage collector", e1);
+      }
+    }
+    UNSAFE = unsafe;
+    UNSAFE_INVOKE_CLEANER = invokeCleaner;
+    DIRECT_BUFFER_CLEANER = cleaner;
+  }
+
+  private final OutputStream myStream;
+  private final RandomAccessFile myFile;
+  private final FileChannel myChannel;
+  private final int mySegmentSize;
+  private MappedByteBuffer myBuffer;
+  private long myCount;
+
+  /**
+   * @param stream the stream the file was opened with, closed together with this one
+   */
+  MappedOutputStream(File file, OutputStream stream, long segmentSize) throws IOException {
+    myStream = stream;
+    myFile = new RandomAccessFile(file, "rw");
+    myChannel = myFile.getChannel();
+    mySegmentSize = (int) Math.min(Integer.MAX_VALUE, Math.max(TRIM_CHUNK_SIZE, segmentSize));
+    try {
+      myCount = myChannel.size();
+      map(mySegmentSize);
+    } catch (IOException e) {
+      myFile.close();
+      throw e;
+    }
+  }
+
+  @Override
+  public long getCount() {
+    return myCount;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (!myBuffer.hasRemaining()) {
+      map(mySegmentSize);
+    }
+    myBuffer.put((byte) b);
+    myCount++;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (len > myBuffer.remaining()) {
+      // the event over the limit before the rollover, or the file is not rolled at all
+      map(Math.max(len, mySegmentSize));
+    }
+    myBuffer.put(b, off, len);
+    myCount += len;
+  }
+
+  /**
+   * Maps the next {@code size} bytes of the file starting from the written length
+   */
+  private void map(int size) throws IOException {
+    final MappedByteBuffer previous = myBuffer;
+    myBuffer = null;
+    if (previous != null) {
+      unmap(previous);
+    }
+    myBuffer = myChannel.map(FileChannel.MapMode.READ_WRITE, myCount, size);
+  }
+
+  /**
+   * The mapped bytes are in the page cache already,
+   * the operating system writes them out on its own
+   */
+  @Override
+  public void drain() {
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      if (myBuffer != null) {
+        unmap(myBuffer);
+        myBuffer = null;
+      }
+      myChannel.truncate(myCount);
+    } finally {
+      try {
+        myFile.close();
+      } finally {
+        myStream.close();
+      }
+    }
+  }
+
+  /**
+   * Removes the zero bytes left at the end of the file by a process
+   * which died while writing it in the memory mapped mode
+   *
+   * @return true if the file was truncated
+   */
+  static boolean trimTrailingZeros(File file) throws IOException {
+    final long end = findEndOfData(file);
+    if (end < 0) {
+      return false;
+    }
+    // opened for writing only when needed, which would create the file again if it was just removed
+    if (!file.exists()) {
+      return false;
+    }
+    final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(end);
+      return true;
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * @return the length without the trailing zero bytes, or -1 if there are none
+   */
+  private static long findEndOfData(File file) throws IOException {
+    final RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      final long length = raf.length();
+      final byte[] chunk = new byte[TRIM_CHUNK_SIZE];
+      long end = length;
+      while (end > 0) {
+        final int len = (int) Math.min(chunk.length, end);
+        raf.seek(end - len);
+        raf.readFully(chunk, 0, len);
+
+        int i = len;
+        while (i > 0 && chunk[i - 1] == 0) {
+          i--;
+        }
+        end -= len - i;
+        if (i > 0) break;
+      }
+      return end == length ? -1 : end;
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Releases the mapping right away instead of waiting for the garbage collector,
+   * which also lets the file be truncated on Windows. Falls back to the
+   * garbage collector where the JDK internals are not accessible.
+   */
+  private static void unmap(MappedByteBuffer buffer) {
+    if (UNSAFE_INVOKE_CLEANER == null && DIRECT_BUFFER_CLEANER == null) return;
+    try {
+      if (UNSAFE_INVOKE_CLEANER != null) {
+        UNSAFE_INVOKE_CLEANER.invoke(UNSAFE, buffer);
+      } else {
+        final Object cleaner = DIRECT_BUFFER_CLEANER.invoke(buffer);
+        if (cleaner != null) {
+          cleaner.getClass().getMethod("clean").invoke(cleaner);
+        }
+      }
+    } catch (Exception e) {
+      LogLog.debug("Failed to unmap a log file buffer", e);
+    }
+  }
+}
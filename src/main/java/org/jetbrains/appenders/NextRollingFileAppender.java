@@ -2,16 +2,28 @@ package org.jetbrains.appenders;
 
 import org.apache.log4j.FileAppender;
 import org.apache.log4j.Layout;
+import org.apache.log4j.Level;
 import org.apache.log4j.helpers.CountingQuietWriter;
 import org.apache.log4j.helpers.LogLog;
 import org.apache.log4j.helpers.OptionConverter;
+import org.apache.log4j.helpers.QuietWriter;
+import org.apache.log4j.spi.ErrorCode;
 import org.apache.log4j.spi.LoggingEvent;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeoutException;
 
 /**
  * @author Eugene Petrenko (eugene.petrenko@gmail.com)
@@ -26,12 +38,21 @@ import java.util.*;
  *  log.N.txt
  *
  *  The appender cleanups the older files, preserving
- *  {@link #maxBackupIndex} number of files.
+ *  {@link #maxBackupIndex} number of files, and optionally
+ *  no more than {@link #maxTotalSize} bytes in total.
  *
- *  After a number of re-starts it may turn out we
- *  write to a file #m, but there are files #m+100.
- *  This will be resolved eventually
+ *  On start the directory is listed once to find the files
+ *  of the previous runs, which are cleaned up the same way,
+ *  and the writing continues after the newest of them.
  *
+ *  A file is rolled over on {@link #setMaxFileSize size}, and optionally
+ *  on {@link #setRollInterval time} or {@link #setMaxEventsPerFile number of events},
+ *  see {@link RollingPolicy}.
+ *
+ *  The older files are removed by a background thread,
+ *  so that logging threads do not wait for the file system
+ *  on rollover. The same thread compresses the rolled over
+ *  files if {@link #setCompression compression} is set.
  */
 public class NextRollingFileAppender extends FileAppender {
   /**
@@ -44,10 +65,102 @@ public class NextRollingFileAppender extends FileAppender {
    */
   protected int maxBackupIndex = 10;
 
-  private long nextRollover = 0;
+  /**
+   * No limit by default
+   */
+  protected long maxTotalSize = 0;
+  private long maxFileAge = 0;
+
+  private long rollInterval = 0;
+  private long maxEventsPerFile = 0;
+  private RollingPolicy rollingPolicy = null;
 
   private String fileExtension = "";
 
+  private int preopenAtPercent = 0;
+
+  private int channelBufferSize = 0;
+  private boolean memoryMapped = false;
+  private long flushInterval = 1000;
+  private Level flushLevel = Level.ERROR;
+  private CompressionCodec compressionCodec = null;
+  private boolean compressedOutput = false;
+  private boolean rollOnCompressedSize = false;
+
+  public long getMaximumTotalSize() {
+    return maxTotalSize;
+  }
+
+  /**
+   * Removes the oldest rolled over files while their total size together with
+   * {@link #setMaxFileSize maxFileSize} for the current file exceeds the given
+   * number of bytes, 0 (default) disables it. Works together with
+   * {@link #setMaxBackupIndex maxBackupIndex}.
+   */
+  public void setMaximumTotalSize(long maxTotalSize) {
+    this.maxTotalSize = maxTotalSize;
+  }
+
+  /**
+   * Same as {@link #setMaximumTotalSize}, takes the "KB", "MB" or "GB" suffixes
+   * the same way as {@link #setMaxFileSize}
+   */
+  public void setMaxTotalSize(String value) {
+    maxTotalSize = OptionConverter.toFileSize(value, maxTotalSize + 1);
+  }
+
+  public long getMaxFileAge() {
+    return maxFileAge;
+  }
+
+  /**
+   * Removes the rolled over files older than the given number of milliseconds
+   * on rollover, 0 (default) disables it
+   */
+  public void setMaxFileAge(long maxFileAge) {
+    this.maxFileAge = maxFileAge;
+  }
+
+  public long getRollInterval() {
+    return rollInterval;
+  }
+
+  /**
+   * Rolls over on the first event at least the given number of milliseconds
+   * after the file was opened, 0 (default) disables it.
+   * Combined with {@link #setMaxFileSize maxFileSize}, whichever comes first.
+   */
+  public void setRollInterval(long rollInterval) {
+    this.rollInterval = rollInterval;
+    myOptionsPolicy = null;
+  }
+
+  public long getMaxEventsPerFile() {
+    return maxEventsPerFile;
+  }
+
+  /**
+   * Rolls over after the given number of events, 0 (default) disables it.
+   * Combined with {@link #setMaxFileSize maxFileSize}, whichever comes first.
+   */
+  public void setMaxEventsPerFile(long maxEventsPerFile) {
+    this.maxEventsPerFile = maxEventsPerFile;
+    myOptionsPolicy = null;
+  }
+
+  public RollingPolicy getRollingPolicy() {
+    return rollingPolicy;
+  }
+
+  /**
+   * Replaces the rollover on {@link #setMaxFileSize maxFileSize},
+   * {@link #setRollInterval rollInterval} and {@link #setMaxEventsPerFile maxEventsPerFile}
+   * with the given policy, null (default) goes back to them
+   */
+  public void setRollingPolicy(RollingPolicy rollingPolicy) {
+    this.rollingPolicy = rollingPolicy;
+  }
+
   public String getFileExtension() {
     return fileExtension;
   }
@@ -56,6 +169,141 @@ public class NextRollingFileAppender extends FileAppender {
     this.fileExtension = fileExtension;
   }
 
+  public int getPreopenAtPercent() {
+    return preopenAtPercent;
+  }
+
+  /**
+   * Once the current file is filled up to the given percent of
+   * {@link #setMaxFileSize maxFileSize}, the next file is created and opened
+   * in the background, so that the rollover only switches to it.
+   * If the next file is not ready by the rollover, it is opened as usual.
+   * 0 (default) disables it.
+   */
+  public void setPreopenAtPercent(int preopenAtPercent) {
+    this.preopenAtPercent = preopenAtPercent;
+  }
+
+  public int getChannelBufferSize() {
+    return channelBufferSize;
+  }
+
+  /**
+   * Writes the file through a {@link java.nio.channels.FileChannel}
+   * with a direct buffer of the given size, 0 (default) disables it.
+   * <p/>
+   * The buffer is written to the file when it is full, every
+   * {@link #setFlushInterval flushInterval} milliseconds and after events
+   * of {@link #setFlushLevel flushLevel} or higher. {@code immediateFlush}
+   * and {@code bufferedIO} are not used in this mode.
+   * Applied when the next file is opened.
+   */
+  public void setChannelBufferSize(int channelBufferSize) {
+    this.channelBufferSize = channelBufferSize;
+  }
+
+  public boolean getMemoryMapped() {
+    return memoryMapped;
+  }
+
+  /**
+   * Writes the file through a memory mapping of {@link #setMaxFileSize maxFileSize} bytes.
+   * The file is extended to that size when it is opened and truncated to the
+   * written length when it is closed. Files left with a tail of zero bytes by a crash
+   * are trimmed when they are found on the next start.
+   * Only supported with {@link JsonLayout}, which never writes zero bytes, with any other layout
+   * the trimming could cut real events, so the option is turned off by {@link #activateOptions()}.
+   * Takes precedence over {@link #setChannelBufferSize channelBufferSize}.
+   * Applied when the next file is opened.
+   */
+  public void setMemoryMapped(boolean memoryMapped) {
+    this.memoryMapped = memoryMapped;
+  }
+
+  public long getFlushInterval() {
+    return flushInterval;
+  }
+
+  /**
+   * Maximum time in milliseconds the events stay in the channel buffer
+   * or in the compressor, 1000 by default
+   */
+  public void setFlushInterval(long flushInterval) {
+    this.flushInterval = flushInterval;
+  }
+
+  public Level getFlushLevel() {
+    return flushLevel;
+  }
+
+  /**
+   * Events of this level or higher are written to the file right away
+   * in the channel and compressed modes, ERROR by default
+   */
+  public void setFlushLevel(Level flushLevel) {
+    this.flushLevel = flushLevel;
+  }
+
+  public CompressionCodec getCompressionCodec() {
+    return compressionCodec;
+  }
+
+  /**
+   * Compresses the rolled over files with the given codec on the housekeeping thread,
+   * null (default) keeps them as they are
+   */
+  public void setCompressionCodec(CompressionCodec compressionCodec) {
+    this.compressionCodec = compressionCodec;
+  }
+
+  /**
+   * Compresses the rolled over files in the background, e.g. log.1.json becomes log.1.json.gz.
+   * Takes {@code gzip}, {@code none} or the class name of a {@link CompressionCodec}.
+   * The original file is removed once it is compressed completely.
+   */
+  public void setCompression(String compression) {
+    if (compression == null || compression.length() == 0 || "none".equalsIgnoreCase(compression)) {
+      compressionCodec = null;
+    } else if ("gzip".equalsIgnoreCase(compression)) {
+      compressionCodec = new GzipCodec();
+    } else {
+      compressionCodec = (CompressionCodec) OptionConverter.instantiateByClassName(compression, CompressionCodec.class, compressionCodec);
+    }
+  }
+
+  public boolean getCompressedOutput() {
+    return compressedOutput;
+  }
+
+  /**
+   * Writes the files gzip compressed, e.g. log.1.json.gz. The compressed stream is
+   * flushed on the same schedule as the buffer of the
+   * {@link #setChannelBufferSize channel mode}, after which the file can be read
+   * with {@code zcat}. {@link #setCompression compression} is not used in this mode.
+   * Takes precedence over the channel and memory mapped modes.
+   * Needs Java 7 or newer.
+   */
+  public void setCompressedOutput(boolean compressedOutput) {
+    if (compressedOutput && !CompressingOutputStream.isSupported()) {
+      LogLog.warn("Compressed output needs Java 7 or newer, writing the files uncompressed");
+      return;
+    }
+    this.compressedOutput = compressedOutput;
+  }
+
+  public boolean getRollOnCompressedSize() {
+    return rollOnCompressedSize;
+  }
+
+  /**
+   * Compares {@link #setMaxFileSize maxFileSize} with the size of the
+   * {@link #setCompressedOutput compressed file} rather than with the size
+   * of the events written to it, false by default
+   */
+  public void setRollOnCompressedSize(boolean rollOnCompressedSize) {
+    this.rollOnCompressedSize = rollOnCompressedSize;
+  }
+
   /**
    * The default constructor simply calls its {@link
    * FileAppender#FileAppender parents constructor}.
@@ -105,70 +353,129 @@ public class NextRollingFileAppender extends FileAppender {
     return maxFileSize;
   }
 
+  private static final long HOUSEKEEPING_SHUTDOWN_TIMEOUT = 5000;
+  private static final String DELETING_SUFFIX = ".deleting";
+  private static final String COMPRESSING_SUFFIX = ".compressing";
+  private static final int COMPRESSION_BUFFER_SIZE = 64 * 1024;
+
   private String realFileName = null;
   private int myCurrentFileId = 1;
-  private final Set<File> myPendingFiles = new HashSet<File>();
+  private final Map<File, BackupFile> myPendingFiles = new HashMap<File, BackupFile>();
+  /**
+   * {@link #myPendingFiles} from the oldest to the newest
+   */
+  private final SortedSet<BackupFile> myBackupFiles = new TreeSet<BackupFile>();
+  /**
+   * Total size of {@link #myBackupFiles}, as they were when they were found or closed,
+   * updated once they are compressed
+   */
+  private long myBackupBytes = 0;
+  private final Housekeeper myHousekeeper = new Housekeeper(getClass().getSimpleName());
   private File myWritingFile = null;
+  /**
+   * The next file being opened in the background
+   */
+  private PreparedFile myNextFile = null;
+  /**
+   * The {@link #myNextFile}s which were not ready in time, their file names
+   * must not be taken until their tasks are finished
+   */
+  private final List<PreparedFile> myAbandonedFiles = new ArrayList<PreparedFile>();
+
+  /**
+   * The stream under {@link #qw}, {@link JsonLayout} writes UTF-8 bytes
+   * here directly bypassing the writer
+   */
+  private OutputStream myOutput = null;
+  private boolean myUtf8Output = false;
+  /**
+   * Bytes written to {@link #myOutput} bypassing the writer
+   */
+  private long myDirectBytes = 0;
+  /**
+   * Same as {@link #myOutput} in the channel, memory mapped and compressed modes
+   */
+  private FileOutput myFileOutput = null;
+  private long myLastChannelDrain = 0;
+  /**
+   * The file being opened, the stream alone does not tell its path
+   */
+  private File myOpeningFile = null;
+  private ScheduledFuture<?> myChannelDrainTask = null;
+
+  /**
+   * The policy built from the rollover options, reset when they change
+   */
+  private RollingPolicy myOptionsPolicy = null;
+  /**
+   * The point the {@link RollingPolicy} counts from
+   */
+  private long myRollStartSize = 0;
+  private long myRollStartTime = 0;
+  private long myRollEvents = 0;
 
   public // synchronization not necessary since doAppend is already synced
   void rollOver() {
     if (qw != null) {
-      long size = ((CountingQuietWriter) qw).getCount();
+      long size = getCurrentFileSize();
       LogLog.debug("rolling over count=" + size);
       //   if operation fails, do not roll again until
-      //      maxFileSize more bytes are written
-      nextRollover = size + maxFileSize;
+      //      the policy triggers once more
+      startRollingPeriod(size);
     }
     LogLog.debug("maxBackupIndex=" + maxBackupIndex);
 
+    boolean scan = false;
     if (realFileName == null) {
       // fileName may be altered with .X,
       // we need to keep original one somehow
       realFileName = fileName;
+      scan = true;
     }
 
     ///clean all pending files
-    {
-      final LinkedList<File> existingFiles = new LinkedList<File>(myPendingFiles);
-      Collections.sort(existingFiles, new Comparator<File>() {
-        public int compare(File o1, File o2) {
-          final long t1 = o1.lastModified();
-          final long t2 = o2.lastModified();
-          return (t1 < t2) ? -1 : ((t1 == t2) ? 0 : 1);
-        }
-      });
-
-      while (existingFiles.size() >= Math.max(1, maxBackupIndex - 1)) {
-        final File file = existingFiles.removeFirst();
-        myPendingFiles.remove(file);
+    while (!myBackupFiles.isEmpty() && myBackupFiles.size() >= Math.max(1, maxBackupIndex - 1)) {
+      removeBackupFile(myBackupFiles.first());
+    }
+    // the files found are cleaned up on the next rollover, as the ones found by probing
+    if (scan) {
+      scanExistingFiles();
+    }
 
-        //noinspection ResultOfMethodCallIgnored
-        file.delete();
+    final PreparedFile prepared = myNextFile;
+    myNextFile = null;
+    if (prepared != null) {
+      if (prepared.take()) {
+        switchTo(prepared);
+        wrapFileId();
+        return;
       }
+      myAbandonedFiles.add(prepared);
     }
 
     int failures = 0;
     for(;;) {
-      final File nextLogFile = new File(realFileName + "." + myCurrentFileId + fileExtension);
-      if (nextLogFile.exists()) {
-        myPendingFiles.add(nextLogFile);
+      final File nextLogFile = new File(realFileName + "." + myCurrentFileId + getFileSuffix());
+      if (myPendingFiles.containsKey(nextLogFile) || isReserved(nextLogFile)) {
+        myCurrentFileId++;
+        continue;
+      }
+      final File existing = findBackup(nextLogFile, getCompressedExtension());
+      if (existing != null) {
+        addExistingFile(nextLogFile, existing.lastModified(), existing.length());
 
         myCurrentFileId++;
         continue;
       }
 
       try {
-        final File prevFile = myWritingFile;
-
-        super.setFile(nextLogFile.getPath(), false, bufferedIO, bufferSize);
-        nextRollover = maxFileSize;
-
-
-        myWritingFile = nextLogFile;
-        if (prevFile != null) {
-          myPendingFiles.add(prevFile);
+        myOpeningFile = nextLogFile;
+        try {
+          super.setFile(nextLogFile.getPath(), false, bufferedIO, bufferSize);
+        } finally {
+          myOpeningFile = null;
         }
-
+        fileOpened(nextLogFile);
         break;
       } catch (IOException e) {
         if (e instanceof InterruptedIOException) {
@@ -182,14 +489,592 @@ public class NextRollingFileAppender extends FileAppender {
       }
     }
 
+    wrapFileId();
+  }
+
+  /**
+   * Finds the files of {@link #realFileName} left by the previous runs with a single
+   * directory listing, adds them to the backup files and continues after the newest one.
+   * Finishes the removal and the compression the previous run did not complete.
+   */
+  private void scanExistingFiles() {
+    final File base = new File(realFileName).getAbsoluteFile();
+    final File dir = base.getParentFile();
+    final String[] names = dir != null ? dir.list() : null;
+    if (names == null) return;
+
+    final String prefix = base.getName() + ".";
+    final String suffix = getFileSuffix();
+    final String compressedExtension = getCompressedExtension();
+    int newestId = 0;
+    long newestTime = Long.MIN_VALUE;
+
+    for (String name : names) {
+      if (!name.startsWith(prefix)) continue;
+
+      int end = prefix.length();
+      while (end < name.length() && Character.isDigit(name.charAt(end))) {
+        end++;
+      }
+      if (end == prefix.length() || end - prefix.length() > 9 || !name.startsWith(suffix, end)) continue;
+
+      final int id = Integer.parseInt(name.substring(prefix.length(), end));
+      final String variant = name.substring(end + suffix.length());
+      final File found = new File(dir, name);
+      final File file = new File(realFileName + "." + id + suffix);
+
+      if (variant.equals(DELETING_SUFFIX)) {
+        myHousekeeper.execute(new Runnable() {
+          public void run() {
+            deleteFile(found);
+          }
+        });
+        continue;
+      }
+      if (variant.equals(COMPRESSING_SUFFIX)) {
+        // the compression was interrupted, start it over
+        if (compressedExtension != null) {
+          deleteFile(new File(file.getPath() + compressedExtension));
+        }
+        if (!found.renameTo(file)) {
+          LogLog.warn("Failed to rename " + found + " back to " + file);
+          continue;
+        }
+      } else if (variant.length() != 0 && !variant.equals(compressedExtension)) {
+        continue;
+      }
+
+      final File existing = findBackup(file, compressedExtension);
+      if (existing == null) continue;
+
+      final long lastModified = existing.lastModified();
+      addExistingFile(file, lastModified, existing.length());
+      if (lastModified > newestTime || lastModified == newestTime && id > newestId) {
+        newestTime = lastModified;
+        newestId = id;
+      }
+    }
+
+    if (newestId > 0) {
+      myCurrentFileId = newestId + 1;
+      wrapFileId();
+    }
+  }
+
+  private void wrapFileId() {
     if (myCurrentFileId >= maxBackupIndex * 2 + 1) {
       myCurrentFileId = 1;
     }
+  }
+
+  private void fileOpened(File nextLogFile) {
+    final File prevFile = myWritingFile;
+
+    startRollingPeriod(0);
+    if (layout instanceof JsonLayout) {
+      ((JsonLayout) layout).resolveSourcePath(this);
+    }
+    if (supportsDirectEncoding() && qw != null) {
+      // push a possible header through the writer before encoded events bypass it
+      qw.flush();
+    }
 
+    myWritingFile = nextLogFile;
+    if (prevFile != null) {
+      // it was written until now, no need to ask the file system for the time
+      addBackupFile(prevFile, System.currentTimeMillis(), prevFile.length());
+      compressInBackground(prevFile);
+    }
+    removeFilesOverBudget();
+  }
+
+  /**
+   * Applies {@link #maxTotalSize} and {@link #maxFileAge}
+   */
+  private void removeFilesOverBudget() {
+    if (maxTotalSize <= 0 && maxFileAge <= 0) return;
+
+    final long now = System.currentTimeMillis();
+    while (!myBackupFiles.isEmpty()) {
+      final BackupFile oldest = myBackupFiles.first();
+      final boolean overBudget = maxTotalSize > 0 && myBackupBytes + maxFileSize > maxTotalSize;
+      final boolean expired = maxFileAge > 0 && oldest.lastModified < now - maxFileAge;
+      if (!overBudget && !expired) break;
+
+      removeBackupFile(oldest);
+    }
+  }
+
+  /**
+   * Same as {@link FileAppender#setFile(String, boolean, boolean, int)}
+   * for a file opened by {@link PreparedFile}
+   */
+  private void switchTo(PreparedFile prepared) {
+    for (BackupFile existing : prepared.getExistingFiles()) {
+      if (existing.file.equals(myWritingFile) || myPendingFiles.containsKey(existing.file)) continue;
+      // it may have been removed by the cleanup since it was seen
+      if (findBackup(existing.file, getCompressedExtension()) != null) {
+        addExistingFile(existing.file, existing.lastModified, existing.size);
+      }
+    }
+
+    if (bufferedIO) {
+      setImmediateFlush(false);
+    }
+    reset();
+    myOpeningFile = prepared.getFile();
+    Writer fw;
+    try {
+      fw = createWriter(prepared.getStream());
+    } finally {
+      myOpeningFile = null;
+    }
+    if (bufferedIO) {
+      fw = new BufferedWriter(fw, bufferSize);
+    }
+    setQWForFiles(fw);
+    fileName = prepared.getFile().getPath();
+    fileAppend = false;
+    writeHeader();
+
+    myCurrentFileId = prepared.getId();
+    fileOpened(prepared.getFile());
+  }
+
+  private void prepareNextFile() {
+    if (realFileName == null) return;
+
+    myNextFile = new PreparedFile(realFileName, getFileSuffix(), getCompressedExtension(), myCurrentFileId);
+    myHousekeeper.execute(myNextFile);
+  }
+
+  private void abandonNextFile() {
+    if (myNextFile != null) {
+      myNextFile.abandon();
+      myAbandonedFiles.add(myNextFile);
+      myNextFile = null;
+    }
+  }
+
+  /**
+   * @return true if an abandoned {@link PreparedFile} may still create the file
+   */
+  private boolean isReserved(File file) {
+    boolean reserved = false;
+    for (Iterator<PreparedFile> it = myAbandonedFiles.iterator(); it.hasNext(); ) {
+      final PreparedFile abandoned = it.next();
+      if (abandoned.isDone()) {
+        it.remove();
+      } else if (abandoned.reserves(file)) {
+        reserved = true;
+      }
+    }
+    return reserved;
+  }
+
+  private boolean addBackupFile(File file, long lastModified, long size) {
+    if (myPendingFiles.containsKey(file)) {
+      return false;
+    }
+    final BackupFile backup = new BackupFile(file, lastModified, size);
+    myPendingFiles.put(file, backup);
+    myBackupFiles.add(backup);
+    myBackupBytes += size;
+    return true;
+  }
+
+  private void removeBackupFile(BackupFile backup) {
+    myBackupFiles.remove(backup);
+    myPendingFiles.remove(backup.file);
+    myBackupBytes -= backup.size;
+    deleteInBackground(backup.file);
+  }
+
+  /**
+   * Called by the {@link #myHousekeeper} once a backup file is trimmed or compressed
+   */
+  private synchronized void backupFileResized(File file, long size) {
+    final BackupFile backup = myPendingFiles.get(file);
+    if (backup != null) {
+      myBackupBytes += size - backup.size;
+      backup.size = size;
+    }
+  }
+
+  /**
+   * Adds a file this appender did not write, e.g. one left by the previous run
+   */
+  private void addExistingFile(final File file, long lastModified, long size) {
+    // the current file may end with the unused part of its memory mapping
+    if (file.equals(myWritingFile) || !addBackupFile(file, lastModified, size)) return;
+
+    // the compressed output is never mapped, and a gzip trailer may end with zero bytes
+    if (memoryMapped && !compressedOutput) {
+      trimInBackground(file);
+    }
+    // e.g. the last file of the previous run
+    compressInBackground(file);
+  }
+
+  /**
+   * Removes the zero tail a memory mapped appender leaves when the process dies.
+   * Only the uncompressed segment is looked at: a file written as a stream may
+   * legitimately end with zero bytes, and so does the trailer of a gzip file.
+   */
+  private void trimInBackground(final File file) {
+    myHousekeeper.execute(new Runnable() {
+      public void run() {
+        // already compressed in the background by the previous run
+        if (!file.isFile()) return;
+        try {
+          if (MappedOutputStream.trimTrailingZeros(file)) {
+            LogLog.warn("Removed the unwritten tail of " + file + " left by a memory mapped appender");
+            backupFileResized(file, file.length());
+          }
+        } catch (IOException e) {
+          // it may have been removed in the meantime
+          LogLog.debug("Failed to check the tail of " + file, e);
+        }
+      }
+    });
+  }
+
+  private String getFileSuffix() {
+    return compressedOutput ? fileExtension + CompressingOutputStream.EXTENSION : fileExtension;
+  }
+
+  /**
+   * @return the codec to compress the rolled over files with, if they are not compressed already
+   */
+  private CompressionCodec getBackgroundCodec() {
+    return compressedOutput ? null : compressionCodec;
+  }
+
+  private String getCompressedExtension() {
+    final CompressionCodec codec = getBackgroundCodec();
+    return codec != null ? codec.getExtension() : null;
+  }
+
+  /**
+   * @param compressedExtension the extension of the compressed files or null
+   * @return the file itself or its compressed version, whichever exists, or null
+   */
+  private static File findBackup(File file, String compressedExtension) {
+    if (file.exists()) {
+      return file;
+    }
+    if (compressedExtension != null) {
+      final File compressing = new File(file.getPath() + COMPRESSING_SUFFIX);
+      if (compressing.exists()) {
+        return compressing;
+      }
+      final File compressed = new File(file.getPath() + compressedExtension);
+      if (compressed.exists()) {
+        return compressed;
+      }
+    }
+    return null;
+  }
+
+  private void compressInBackground(final File file) {
+    final CompressionCodec codec = getBackgroundCodec();
+    if (codec == null) return;
+
+    myHousekeeper.execute(new Runnable() {
+      public void run() {
+        final long size = compress(file, codec);
+        if (size >= 0) {
+          backupFileResized(file, size);
+        }
+      }
+    });
+  }
+
+  /**
+   * Replaces the file with its compressed version. The file is renamed first,
+   * which fails if the cleanup has taken it already, and keeps the name busy
+   * for the rollover until the compressed file is complete.
+   *
+   * @return the size of the compressed file, or -1 if the file was not compressed
+   */
+  private long compress(File file, CompressionCodec codec) {
+    final File source = new File(file.getPath() + COMPRESSING_SUFFIX);
+    if (!file.renameTo(source)) return -1;
+
+    final File target = new File(file.getPath() + codec.getExtension());
+    try {
+      final FileInputStream in = new FileInputStream(source);
+      try {
+        final FileOutputStream fileOut = new FileOutputStream(target);
+        final OutputStream out;
+        try {
+          out = codec.compress(fileOut);
+        } catch (IOException e) {
+          fileOut.close();
+          throw e;
+        }
+        try {
+          final byte[] buf = new byte[COMPRESSION_BUFFER_SIZE];
+          int len;
+          while ((len = in.read(buf)) > 0) {
+            out.write(buf, 0, len);
+          }
+        } finally {
+          out.close();
+        }
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      LogLog.warn("Failed to compress " + file + ", keeping it as it is", e);
+      //noinspection ResultOfMethodCallIgnored
+      target.delete();
+      restoreUncompressed(file, source);
+      return -1;
+    }
+
+    if (!source.delete() && source.exists()) {
+      LogLog.warn("Failed to delete " + source + " after compressing it");
+    }
+    return target.length();
+  }
+
+  /**
+   * Gives the file its name back after a failed compression. A file removed
+   * by the cleanup in the meantime is not a backup any more: its removal only
+   * covers the temporary and the compressed names, and its name may be taken
+   * by a new file already, so it is deleted instead.
+   */
+  private synchronized void restoreUncompressed(File file, File source) {
+    if (!myPendingFiles.containsKey(file)) {
+      deleteFile(source);
+      return;
+    }
+    if (!source.renameTo(file)) {
+      LogLog.warn("Failed to rename " + source + " back to " + file);
+    }
+  }
+
+  /**
+   * Renames the file out of the way, so that its name can be reused right away,
+   * and leaves the actual removal, which may take a while for a big file,
+   * to the {@link #myHousekeeper}
+   */
+  private void deleteInBackground(File file) {
+    final File deleting = new File(file.getPath() + DELETING_SUFFIX);
+    final boolean renamed = file.renameTo(deleting);
+    if (!renamed) {
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+    }
+
+    // the file may be compressed already or being compressed now,
+    // either way it is done by the time this task runs
+    final String compressedExtension = getCompressedExtension();
+    if (!renamed && compressedExtension == null) return;
+
+    final File compressing = new File(file.getPath() + COMPRESSING_SUFFIX);
+    final File compressed = compressedExtension != null ? new File(file.getPath() + compressedExtension) : null;
+    myHousekeeper.execute(new Runnable() {
+      public void run() {
+        if (renamed) {
+          deleteFile(deleting);
+        }
+        if (compressed != null) {
+          deleteFile(compressing);
+          deleteFile(compressed);
+        }
+      }
+    });
+  }
+
+  private static void deleteFile(File file) {
+    if (!file.delete() && file.exists()) {
+      LogLog.warn("Failed to delete " + file);
+    }
+  }
+
+  /**
+   * Waits for the old files scheduled for removal to be removed
+   */
+  void awaitHousekeeping() throws InterruptedException, TimeoutException {
+    myHousekeeper.await(HOUSEKEEPING_SHUTDOWN_TIMEOUT);
+  }
+
+  @Override
+  public void close() {
+    synchronized (this) {
+      abandonNextFile();
+      if (myChannelDrainTask != null) {
+        myChannelDrainTask.cancel(false);
+        myChannelDrainTask = null;
+      }
+      super.close();
+    }
+    // not under the lock, a running housekeeping task may need it
+    myHousekeeper.shutdown(HOUSEKEEPING_SHUTDOWN_TIMEOUT);
+  }
+
+  /**
+   * Finds the next free file name and opens it on the housekeeping thread.
+   * The rollover either {@link #take takes} the opened file or abandons it,
+   * in which case the file is removed once it is created.
+   */
+  private static final class PreparedFile implements Runnable {
+    private final String myBaseName;
+    private final String myExtension;
+    private final String myCompressedExtension;
+    private final int myStartId;
+    private final List<BackupFile> myExistingFiles = new ArrayList<BackupFile>();
+
+    private File myFile;
+    private int myId;
+    private boolean myCreated;
+    private FileOutputStream myStream;
+    private boolean myDone;
+    private boolean myAbandoned;
+
+    PreparedFile(String baseName, String extension, String compressedExtension, int startId) {
+      myBaseName = baseName;
+      myExtension = extension;
+      myCompressedExtension = compressedExtension;
+      myStartId = startId;
+    }
+
+    public void run() {
+      try {
+        for (int id = myStartId; ; id++) {
+          final File file = new File(myBaseName + "." + id + myExtension);
+          synchronized (this) {
+            if (myAbandoned) return;
+            myFile = file;
+            myId = id;
+          }
+          File existing = findBackup(file, myCompressedExtension);
+          if (existing == null && file.createNewFile()) {
+            synchronized (this) {
+              myCreated = true;
+            }
+            final FileOutputStream stream = new FileOutputStream(file, true);
+            synchronized (this) {
+              myStream = stream;
+            }
+            return;
+          }
+          if (existing == null) {
+            existing = file;
+          }
+          myExistingFiles.add(new BackupFile(file, existing.lastModified(), existing.length()));
+        }
+      } catch (IOException e) {
+        LogLog.warn("Failed to open the next log file " + myFile + " in advance", e);
+      } finally {
+        synchronized (this) {
+          myDone = true;
+          if (myAbandoned) {
+            discard();
+          }
+        }
+      }
+    }
+
+    /**
+     * @return true if the file is open and can be used,
+     * otherwise the file is abandoned
+     */
+    synchronized boolean take() {
+      if (myDone && myStream != null && !myAbandoned) {
+        return true;
+      }
+      abandon();
+      return false;
+    }
+
+    synchronized void abandon() {
+      myAbandoned = true;
+      if (myDone) {
+        discard();
+      }
+    }
+
+    synchronized boolean isDone() {
+      return myDone;
+    }
+
+    /**
+     * @return true if the given file may still be created by this abandoned task
+     */
+    synchronized boolean reserves(File file) {
+      return !myDone && file.equals(myFile);
+    }
+
+    private void discard() {
+      if (myStream != null) {
+        try {
+          myStream.close();
+        } catch (IOException e) {
+          LogLog.warn("Failed to close " + myFile, e);
+        }
+        myStream = null;
+      }
+      if (myCreated) {
+        //noinspection ResultOfMethodCallIgnored
+        myFile.delete();
+        myCreated = false;
+      }
+    }
+
+    synchronized File getFile() {
+      return myFile;
+    }
+
+    synchronized int getId() {
+      return myId;
+    }
+
+    synchronized FileOutputStream getStream() {
+      return myStream;
+    }
+
+    synchronized List<BackupFile> getExistingFiles() {
+      return myExistingFiles;
+    }
+  }
+
+  /**
+   * A backup file with its modification time and size as they were when the file was found or closed
+   */
+  private static final class BackupFile implements Comparable<BackupFile> {
+    private final File file;
+    private final long lastModified;
+    private long size;
+
+    BackupFile(File file, long lastModified, long size) {
+      this.file = file;
+      this.lastModified = lastModified;
+      this.size = size;
+    }
+
+    public int compareTo(BackupFile o) {
+      if (lastModified != o.lastModified) {
+        return lastModified < o.lastModified ? -1 : 1;
+      }
+      return file.compareTo(o.file);
+    }
+  }
+
+  @Override
+  public void activateOptions() {
+    if (memoryMapped && !(layout instanceof JsonLayout)) {
+      LogLog.warn("memoryMapped is only supported with JsonLayout, [" + name + "] writes its file as a stream");
+      memoryMapped = false;
+    }
+    super.activateOptions();
   }
 
   public
   synchronized void setFile(String fileName, boolean append, boolean bufferedIO, int bufferSize) throws IOException {
+    abandonNextFile();
     realFileName = null;
     rollOver();
   }
@@ -221,6 +1106,7 @@ public class NextRollingFileAppender extends FileAppender {
    */
   public void setMaximumFileSize(long maxFileSize) {
     this.maxFileSize = maxFileSize;
+    myOptionsPolicy = null;
   }
 
 
@@ -237,10 +1123,127 @@ public class NextRollingFileAppender extends FileAppender {
    */
   public void setMaxFileSize(String value) {
     maxFileSize = OptionConverter.toFileSize(value, maxFileSize + 1);
+    myOptionsPolicy = null;
+  }
+
+  private void startRollingPeriod(long fileSize) {
+    myRollStartSize = fileSize;
+    myRollStartTime = System.currentTimeMillis();
+    myRollEvents = 0;
+  }
+
+  private RollingPolicy getActivePolicy() {
+    if (rollingPolicy != null) {
+      return rollingPolicy;
+    }
+
+    RollingPolicy policy = myOptionsPolicy;
+    if (policy == null) {
+      final List<RollingPolicy> policies = new ArrayList<RollingPolicy>(3);
+      policies.add(new SizeBasedRollingPolicy(maxFileSize));
+      if (rollInterval > 0) {
+        policies.add(new TimeBasedRollingPolicy(rollInterval));
+      }
+      if (maxEventsPerFile > 0) {
+        policies.add(new EventCountRollingPolicy(maxEventsPerFile));
+      }
+      policy = policies.size() == 1 ? policies.get(0) : new CompositeRollingPolicy(policies);
+      myOptionsPolicy = policy;
+    }
+    return policy;
   }
 
   protected void setQWForFiles(Writer writer) {
-    this.qw = new CountingQuietWriter(writer, errorHandler);
+    // the channel stream counts the bytes itself
+    this.qw = myFileOutput != null ? new QuietWriter(writer, errorHandler) : new CountingQuietWriter(writer, errorHandler);
+  }
+
+  @Override
+  protected OutputStreamWriter createWriter(OutputStream os) {
+    myFileOutput = null;
+    if (compressedOutput) {
+      myFileOutput = new CompressingOutputStream(os, rollOnCompressedSize);
+      myLastChannelDrain = System.currentTimeMillis();
+      scheduleChannelDrain();
+    } else if (memoryMapped && myOpeningFile != null) {
+      try {
+        myFileOutput = new MappedOutputStream(myOpeningFile, os, maxFileSize);
+      } catch (IOException e) {
+        LogLog.warn("Failed to map " + myOpeningFile + " into memory, writing it as a stream", e);
+      }
+    } else if (channelBufferSize > 0 && os instanceof FileOutputStream) {
+      myFileOutput = new ChannelOutputStream(((FileOutputStream) os).getChannel(), channelBufferSize);
+      myLastChannelDrain = System.currentTimeMillis();
+      scheduleChannelDrain();
+    }
+
+    if (myFileOutput != null) {
+      myOutput = myFileOutput;
+    } else {
+      myOutput = bufferedIO ? new BufferedOutputStream(os, bufferSize) : os;
+    }
+    myDirectBytes = 0;
+    myUtf8Output = isUtf8(getEncoding());
+    return super.createWriter(myOutput);
+  }
+
+  @Override
+  protected void reset() {
+    super.reset();
+    myOutput = null;
+    myFileOutput = null;
+  }
+
+  private void scheduleChannelDrain() {
+    if (myChannelDrainTask != null || flushInterval <= 0) return;
+
+    myChannelDrainTask = myHousekeeper.schedule(new Runnable() {
+      public void run() {
+        synchronized (NextRollingFileAppender.this) {
+          if (myFileOutput != null && System.currentTimeMillis() - myLastChannelDrain >= flushInterval) {
+            drainChannel();
+          }
+        }
+      }
+    }, flushInterval);
+  }
+
+  private void drainChannel() {
+    if (myFileOutput == null) return;
+
+    myLastChannelDrain = System.currentTimeMillis();
+    try {
+      if (qw != null) {
+        // text written through the writer may still be in its encoder
+        qw.flush();
+      }
+      myFileOutput.drain();
+    } catch (IOException e) {
+      if (e instanceof InterruptedIOException) {
+        Thread.currentThread().interrupt();
+      }
+      errorHandler.error("Failed to write [" + fileName + "].", e, ErrorCode.WRITE_FAILURE);
+    }
+  }
+
+  private static boolean isUtf8(String encoding) {
+    try {
+      final Charset charset = encoding == null ? Charset.defaultCharset() : Charset.forName(encoding);
+      return "UTF-8".equals(charset.name());
+    } catch (Exception e) {
+      return false;
+    }
+  }
+
+  /**
+   * @return number of bytes (or chars for text written through the writer)
+   * written to the current file
+   */
+  private long getCurrentFileSize() {
+    if (myFileOutput != null) {
+      return myFileOutput.getCount();
+    }
+    return ((CountingQuietWriter) qw).getCount() + myDirectBytes;
   }
 
   /**
@@ -250,13 +1253,51 @@ public class NextRollingFileAppender extends FileAppender {
    * @since 0.9.0
    */
   protected void subAppend(LoggingEvent event) {
-    super.subAppend(event);
+    final boolean directEncoding = supportsDirectEncoding();
+    if (directEncoding && (!layout.ignoresThrowable() || event.getThrowableInformation() == null)) {
+      try {
+        myDirectBytes += ((JsonLayout) layout).format(event, myOutput);
+        if (immediateFlush) {
+          myOutput.flush();
+        }
+      } catch (IOException e) {
+        if (e instanceof InterruptedIOException) {
+          Thread.currentThread().interrupt();
+        }
+        errorHandler.error("Failed to write [" + fileName + "].", e, ErrorCode.WRITE_FAILURE);
+      }
+    } else {
+      super.subAppend(event);
+      if ((directEncoding || myFileOutput != null) && qw != null) {
+        // keep the order with events encoded directly into the stream,
+        // and let the channel stream count the bytes
+        qw.flush();
+      }
+    }
+
+    if (myFileOutput != null
+        && (event.getLevel().isGreaterOrEqual(flushLevel) || event.getTimeStamp() - myLastChannelDrain >= flushInterval)) {
+      drainChannel();
+    }
+
     if (fileName != null && qw != null) {
-      long size = ((CountingQuietWriter) qw).getCount();
-      if (size >= maxFileSize && size >= nextRollover) {
+      long size = getCurrentFileSize();
+      myRollEvents++;
+      if (getActivePolicy().isTriggeringEvent(event, size - myRollStartSize, event.getTimeStamp() - myRollStartTime, myRollEvents)) {
         rollOver();
+      } else if (preopenAtPercent > 0 && myNextFile == null && size >= maxFileSize * preopenAtPercent / 100) {
+        prepareNextFile();
       }
     }
   }
 
+  /**
+   * {@link JsonLayout} encodes events straight into the file stream
+   * as long as the file is UTF-8. Events for which log4j has to append
+   * the stack trace after the layout output still go through the writer.
+   */
+  private boolean supportsDirectEncoding() {
+    return myOutput != null && myUtf8Output && layout instanceof JsonLayout;
+  }
+
 }
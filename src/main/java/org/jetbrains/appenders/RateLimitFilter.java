@@ -0,0 +1,346 @@
+package org.jetbrains.appenders;
+
+import org.apache.log4j.Appender;
+import org.apache.log4j.Category;
+import org.apache.log4j.Level;
+import org.apache.log4j.spi.Filter;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the rate of the events of every logger, or of every message of a logger,
+ * with a token bucket, and suppresses the same message repeated within a time window.
+ *
+ * The number of suppressed events is reported with an event
+ * "N similar events suppressed" of the same logger, at most every
+ * {@link #setReportInterval reportInterval} milliseconds after the first suppressed event.
+ * The report goes only to the appenders this filter is attached to, and is appended
+ * from a background thread, so that it is never appended while a logger or an appender
+ * is locked. The time of the limits is taken from the events.
+ *
+ * The counters are updated with compare-and-set, the filter does not lock.
+ */
+public class RateLimitFilter extends Filter {
+  /**
+   * The keys are logger names and messages, the limit guards against messages made up on the fly
+   */
+  private static final int MAX_TRACKED_KEYS = 4096;
+
+  /**
+   * Shared by all the filters, it only runs the reports
+   */
+  private static final Housekeeper REPORTER = new Housekeeper(RateLimitFilter.class.getSimpleName());
+
+  private double myEventsPerSecond = 0;
+  private int myBurst = 0;
+  private boolean myPerMessage = false;
+  private long myDuplicateWindow = 0;
+  private long myReportInterval = 10000;
+
+  private final ConcurrentMap<String, TokenBucket> myBuckets = new ConcurrentHashMap<String, TokenBucket>();
+  private final ConcurrentMap<String, Duplicates> myDuplicates = new ConcurrentHashMap<String, Duplicates>();
+  /**
+   * The limits with suppressed events which are not tracked any more
+   */
+  private final Queue<Limit> myEvicted = new ConcurrentLinkedQueue<Limit>();
+  private final AtomicBoolean myReportScheduled = new AtomicBoolean();
+
+  /**
+   * Events allowed per second for every logger or message, 0 (default) disables the rate limit
+   */
+  public void setEventsPerSecond(double eventsPerSecond) {
+    myEventsPerSecond = eventsPerSecond;
+    evictAll(myBuckets);
+  }
+
+  public double getEventsPerSecond() {
+    return myEventsPerSecond;
+  }
+
+  /**
+   * Events allowed at once before the rate applies, the rate for a second by default
+   */
+  public void setBurst(int burst) {
+    myBurst = burst;
+    evictAll(myBuckets);
+  }
+
+  public int getBurst() {
+    return myBurst;
+  }
+
+  /**
+   * Limits every message of a logger separately instead of the whole logger, false by default
+   */
+  public void setPerMessage(boolean perMessage) {
+    myPerMessage = perMessage;
+    evictAll(myBuckets);
+  }
+
+  public boolean getPerMessage() {
+    return myPerMessage;
+  }
+
+  /**
+   * Suppresses an event with the same logger, level and message as an event
+   * passed less than the given number of milliseconds ago, 0 (default) disables it
+   */
+  public void setDuplicateWindow(long duplicateWindow) {
+    myDuplicateWindow = duplicateWindow;
+    evictAll(myDuplicates);
+  }
+
+  public long getDuplicateWindow() {
+    return myDuplicateWindow;
+  }
+
+  /**
+   * How long the suppressed events are counted before they are reported, in milliseconds, 10 seconds by default
+   */
+  public void setReportInterval(long reportInterval) {
+    myReportInterval = Math.max(1, reportInterval);
+  }
+
+  public long getReportInterval() {
+    return myReportInterval;
+  }
+
+  @Override
+  public int decide(final LoggingEvent loggingEvent) {
+    if (loggingEvent == null || loggingEvent instanceof SummaryEvent) return NEUTRAL;
+
+    final String loggerName = loggingEvent.getLoggerName();
+    if (loggerName == null) return NEUTRAL;
+
+    final long now = loggingEvent.getTimeStamp();
+
+    if (myDuplicateWindow > 0) {
+      final String key = loggerName + '\n' + loggingEvent.getLevel() + '\n' + loggingEvent.getRenderedMessage();
+      Duplicates duplicates = myDuplicates.get(key);
+      if (duplicates == null) {
+        putIfAbsent(myDuplicates, key, new Duplicates(loggingEvent.getLogger(), now, myDuplicateWindow));
+      } else if (!duplicates.pass(loggingEvent)) {
+        scheduleReport();
+        return DENY;
+      }
+    }
+
+    if (myEventsPerSecond > 0) {
+      final String key = myPerMessage ? loggerName + '\n' + loggingEvent.getRenderedMessage() : loggerName;
+      TokenBucket bucket = myBuckets.get(key);
+      if (bucket == null) {
+        final long interval = (long) (1000000 / myEventsPerSecond);
+        final int burst = myBurst > 0 ? myBurst : (int) Math.max(1, Math.ceil(myEventsPerSecond));
+        bucket = putIfAbsent(myBuckets, key, new TokenBucket(loggingEvent.getLogger(), interval, burst));
+      }
+      if (!bucket.pass(loggingEvent)) {
+        scheduleReport();
+        return DENY;
+      }
+    }
+
+    return NEUTRAL;
+  }
+
+  private <T extends Limit> T putIfAbsent(ConcurrentMap<String, T> map, String key, T value) {
+    if (map.size() >= MAX_TRACKED_KEYS) {
+      evictAll(map);
+    }
+    final T existing = map.putIfAbsent(key, value);
+    return existing != null ? existing : value;
+  }
+
+  /**
+   * Forgets the limits, keeping the ones with suppressed events until they are reported
+   */
+  private void evictAll(ConcurrentMap<String, ? extends Limit> map) {
+    for (Limit limit : map.values()) {
+      if (limit.hasSuppressed()) {
+        myEvicted.add(limit);
+      }
+    }
+    map.clear();
+  }
+
+  private void scheduleReport() {
+    if (myReportScheduled.compareAndSet(false, true)) {
+      REPORTER.scheduleOnce(new Runnable() {
+        public void run() {
+          reportSuppressed();
+        }
+      }, myReportInterval);
+    }
+  }
+
+  /**
+   * Appends the summaries of the events suppressed since the previous report
+   */
+  void reportSuppressed() {
+    // the events suppressed from now on schedule the next report
+    myReportScheduled.set(false);
+
+    final List<SummaryEvent> summaries = new ArrayList<SummaryEvent>();
+    Limit evicted;
+    while ((evicted = myEvicted.poll()) != null) {
+      evicted.collect(summaries);
+    }
+    for (Limit limit : myDuplicates.values()) {
+      limit.collect(summaries);
+    }
+    for (Limit limit : myBuckets.values()) {
+      limit.collect(summaries);
+    }
+
+    for (SummaryEvent summary : summaries) {
+      for (Appender appender : findAppenders(summary.getLogger())) {
+        appender.doAppend(summary);
+      }
+    }
+  }
+
+  /**
+   * @return the appenders of the logger which have this filter
+   */
+  private List<Appender> findAppenders(Category logger) {
+    final List<Appender> result = new ArrayList<Appender>(1);
+    for (Category category = logger; category != null; category = category.getAdditivity() ? category.getParent() : null) {
+      final Enumeration<?> appenders = category.getAllAppenders();
+      while (appenders.hasMoreElements()) {
+        final Object appender = appenders.nextElement();
+        if (appender instanceof Appender && hasThisFilter((Appender) appender) && !result.contains(appender)) {
+          result.add((Appender) appender);
+        }
+      }
+    }
+    return result;
+  }
+
+  private boolean hasThisFilter(Appender appender) {
+    for (Filter filter = appender.getFilter(); filter != null; filter = filter.getNext()) {
+      if (filter == this) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Counts the events it denied until they are reported
+   */
+  private static abstract class Limit {
+    private final Category myLogger;
+    private final AtomicLong mySuppressed = new AtomicLong();
+    /**
+     * Of the last suppressed event
+     */
+    private volatile Level myLevel;
+    private volatile String myFqn;
+
+    Limit(Category logger) {
+      myLogger = logger;
+    }
+
+    abstract boolean tryPass(long now);
+
+    final boolean pass(LoggingEvent event) {
+      if (tryPass(event.getTimeStamp())) {
+        return true;
+      }
+      myLevel = event.getLevel();
+      myFqn = event.getFQNOfLoggerClass();
+      mySuppressed.incrementAndGet();
+      return false;
+    }
+
+    final boolean hasSuppressed() {
+      return mySuppressed.get() != 0;
+    }
+
+    final void collect(List<SummaryEvent> summaries) {
+      if (mySuppressed.get() == 0 || myLogger == null) return;
+
+      final long suppressed = mySuppressed.getAndSet(0);
+      if (suppressed == 0) return;
+
+      summaries.add(new SummaryEvent(myFqn, myLogger, myLevel, suppressed + " similar events suppressed"));
+    }
+  }
+
+  /**
+   * A token bucket kept as the time when it is empty again, so that taking a token
+   * is a single compare-and-set
+   */
+  private static final class TokenBucket extends Limit {
+    /**
+     * Microseconds
+     */
+    private final long myInterval;
+    private final long myCapacity;
+    private final AtomicLong myEmptyAt = new AtomicLong(Long.MIN_VALUE);
+
+    TokenBucket(Category logger, long interval, int burst) {
+      super(logger);
+      myInterval = Math.max(1, interval);
+      myCapacity = myInterval * burst;
+    }
+
+    @Override
+    boolean tryPass(long now) {
+      final long nowMicros = now * 1000;
+      for (;;) {
+        final long emptyAt = myEmptyAt.get();
+        final long next = Math.max(emptyAt, nowMicros) + myInterval;
+        if (next - nowMicros > myCapacity) {
+          return false;
+        }
+        if (myEmptyAt.compareAndSet(emptyAt, next)) {
+          return true;
+        }
+      }
+    }
+  }
+
+  /**
+   * The time window of a message started by the first event after the previous window
+   */
+  private static final class Duplicates extends Limit {
+    private final long myWindow;
+    private final AtomicLong myWindowStart;
+
+    Duplicates(Category logger, long now, long window) {
+      super(logger);
+      myWindow = window;
+      myWindowStart = new AtomicLong(now);
+    }
+
+    @Override
+    boolean tryPass(long now) {
+      for (;;) {
+        final long windowStart = myWindowStart.get();
+        if (now - windowStart < myWindow) {
+          return false;
+        }
+        if (myWindowStart.compareAndSet(windowStart, now)) {
+          return true;
+        }
+      }
+    }
+  }
+
+  private static final class SummaryEvent extends LoggingEvent {
+    private static final long serialVersionUID = 1L;
+
+    SummaryEvent(String fqn, Category logger, Level level, String message) {
+      super(fqn, logger, System.currentTimeMillis(), level, message, null);
+    }
+  }
+}
@@ -0,0 +1,23 @@
+package org.jetbrains.appenders;
+
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Decides when {@link NextRollingFileAppender} switches to the next file.
+ * It is asked after every event under the appender lock, so it should only
+ * compare numbers. The appender keeps track of the current file,
+ * the policy itself does not need any state.
+ *
+ * @see CompositeRollingPolicy
+ */
+public interface RollingPolicy {
+  /**
+   * @param event      the event just written
+   * @param fileSize   bytes written to the current file since it was opened,
+   *                   or since the last rollover which failed
+   * @param fileAge    milliseconds from the same point to the {@link LoggingEvent#getTimeStamp() event time}
+   * @param fileEvents events written since the same point, including this one
+   * @return true to roll over to the next file
+   */
+  boolean isTriggeringEvent(LoggingEvent event, long fileSize, long fileAge, long fileEvents);
+}
@@ -0,0 +1,324 @@
+package org.jetbrains.appenders;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.Filter;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Passes a random fraction of the events of the given categories, e.g. with
+ * {@code com.foo.http:INFO=0.01, com.foo.http:DEBUG=0.001} one of a hundred
+ * INFO events of {@code com.foo.http} is kept, one of a thousand DEBUG events,
+ * and all the events of higher levels.
+ * <p/>
+ * A rate applies to the events of its level and below, the rate of the lowest
+ * level which covers the event is taken. A rate without a level applies to all levels.
+ * The longest matching category decides, the same way as in {@link CategoryFilter}.
+ * <p/>
+ * With {@link #setMarkSampled markSampled} the {@link JsonLayout} of the same appender
+ * writes the rate of a sampled event as the top-level {@code sampleRate} field,
+ * so that the counts can be scaled back. The decision is kept per thread until the event
+ * is formatted rather than on the event, which is shared with the other appenders of the logger,
+ * so events this filter did not sample, e.g. accepted by a filter before it, have no rate.
+ */
+public class SamplingFilter extends Filter {
+  private static final int MAX_CACHED_LOGGERS = 4096;
+  private static final Rates KEEP_ALL = new Rates();
+
+  private static final ThreadLocal<XorShiftRandom> RANDOM = new ThreadLocal<XorShiftRandom>() {
+    @Override
+    protected XorShiftRandom initialValue() {
+      return new XorShiftRandom(System.nanoTime() ^ Thread.currentThread().getId() * 0x9E3779B97F4A7C15L);
+    }
+  };
+
+  private String myRates;
+  private volatile boolean myMarkSampled = false;
+
+  /**
+   * The last event this filter sampled on the thread, read by the layout of its appender
+   */
+  private final ThreadLocal<Mark> myMark = new ThreadLocal<Mark>() {
+    @Override
+    protected Mark initialValue() {
+      return new Mark();
+    }
+  };
+
+  /**
+   * null if there are no rates
+   */
+  private volatile Rules myRules;
+
+  @Override
+  public int decide(final LoggingEvent loggingEvent) {
+    if (loggingEvent == null) return NEUTRAL;
+
+    final Rules rules = myRules;
+    if (rules == null) return NEUTRAL;
+
+    final String loggerName = loggingEvent.getLoggerName();
+    if (loggerName == null) return NEUTRAL;
+
+    final Rates rates = rules.getRates(loggerName);
+    final int i = rates.indexOf(loggingEvent.getLevel().toInt());
+    if (i < 0) return NEUTRAL;
+
+    final double rate = rates.rates[i];
+    if (rate >= 1) return NEUTRAL;
+    if (rate <= 0 || RANDOM.get().nextDouble() >= rate) return DENY;
+
+    if (myMarkSampled) {
+      final Mark mark = myMark.get();
+      mark.event = loggingEvent;
+      mark.rate = rates.texts[i];
+    }
+    return NEUTRAL;
+  }
+
+  /**
+   * Takes the rate a {@link #setMarkSampled marking} filter of the chain sampled the event with,
+   * must be called on the thread which logged the event, unless it was {@link #carryMarkedRate carried}
+   *
+   * @param filter the first filter of an appender
+   * @return the rate or null if the event was not sampled
+   */
+  static String takeMarkedRate(Filter filter, LoggingEvent event) {
+    if (event instanceof SampledEvent) {
+      return ((SampledEvent) event).myRate;
+    }
+    for (; filter != null; filter = filter.getNext()) {
+      if (filter instanceof SamplingFilter && ((SamplingFilter) filter).myMarkSampled) {
+        final String rate = ((SamplingFilter) filter).takeRate(event);
+        if (rate != null) {
+          return rate;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Lets an appender which formats events on another thread keep the rate of a sampled event
+   *
+   * @param filter the first filter of the appender
+   * @return the event itself, or its copy with the rate if it was sampled
+   */
+  static LoggingEvent carryMarkedRate(Filter filter, LoggingEvent event) {
+    final String rate = takeMarkedRate(filter, event);
+    return rate != null ? new SampledEvent(event, rate) : event;
+  }
+
+  private String takeRate(LoggingEvent event) {
+    final Mark mark = myMark.get();
+    if (mark.event != event) return null;
+
+    // the event is not kept longer than needed
+    mark.event = null;
+    return mark.rate;
+  }
+
+  /**
+   * Comma separated {@code category[:LEVEL]=rate} rules, the rate is between 0 and 1
+   */
+  public void setRates(final String rates) {
+    myRates = rates;
+    compileRules();
+  }
+
+  public String getRates() {
+    return myRates;
+  }
+
+  /**
+   * Lets {@link JsonLayout} write the rate of the sampled events, false by default
+   */
+  public void setMarkSampled(final boolean markSampled) {
+    myMarkSampled = markSampled;
+  }
+
+  public boolean getMarkSampled() {
+    return myMarkSampled;
+  }
+
+  private void compileRules() {
+    // the rates by level of every category
+    final Map<String, SortedMap<Integer, String>> categories = new HashMap<String, SortedMap<Integer, String>>();
+    if (myRates != null) {
+      for (String rule : myRates.split(",")) {
+        rule = rule.trim();
+        if (rule.length() == 0) continue;
+
+        final int eq = rule.lastIndexOf('=');
+        if (eq < 0) {
+          LogLog.warn("No rate in the sampling rule [" + rule + "], the rule is ignored");
+          continue;
+        }
+        final double value;
+        try {
+          value = Double.parseDouble(rule.substring(eq + 1).trim());
+        } catch (NumberFormatException e) {
+          LogLog.warn("Bad rate in the sampling rule [" + rule + "], the rule is ignored");
+          continue;
+        }
+        // also false for NaN
+        if (!(value >= 0 && value <= 1)) {
+          LogLog.warn("The rate in the sampling rule [" + rule + "] is not between 0 and 1, the rule is ignored");
+          continue;
+        }
+        // normalized, so that it can be written as a JSON number
+        final String rate = String.valueOf(value);
+
+        String category = rule.substring(0, eq).trim();
+        Level level = Level.OFF;
+        final int colon = category.lastIndexOf(':');
+        if (colon >= 0) {
+          level = Level.toLevel(category.substring(colon + 1).trim(), null);
+          if (level == null) {
+            LogLog.warn("Unknown level in the sampling rule [" + rule + "], the rule is ignored");
+            continue;
+          }
+          category = category.substring(0, colon).trim();
+        }
+
+        SortedMap<Integer, String> levels = categories.get(category);
+        if (levels == null) {
+          levels = new TreeMap<Integer, String>();
+          categories.put(category, levels);
+        }
+        levels.put(level.toInt(), rate);
+      }
+    }
+
+    if (categories.isEmpty()) {
+      myRules = null;
+      return;
+    }
+    final CategoryTrie<Rates> trie = new CategoryTrie<Rates>();
+    for (Map.Entry<String, SortedMap<Integer, String>> entry : categories.entrySet()) {
+      trie.put(entry.getKey(), new Rates(entry.getValue()));
+    }
+    myRules = new Rules(trie);
+  }
+
+  private static final class Mark {
+    private LoggingEvent event;
+    private String rate;
+  }
+
+  /**
+   * A copy of a sampled event with its rate, with the state of the logging thread already captured
+   */
+  private static final class SampledEvent extends LoggingEvent {
+    private static final long serialVersionUID = 1L;
+
+    private final String myRate;
+
+    SampledEvent(LoggingEvent event, String rate) {
+      super(event.getFQNOfLoggerClass(), event.getLogger(), event.getTimeStamp(), event.getLevel(),
+          event.getRenderedMessage(), event.getThreadName(), event.getThrowableInformation(), event.getNDC(),
+          event.locationInformationExists() ? event.getLocationInformation() : null, event.getProperties());
+      myRate = rate;
+    }
+  }
+
+  /**
+   * The rates of a category by level
+   */
+  private static final class Rates {
+    /**
+     * {@link Level#toInt()} in the ascending order
+     */
+    private final int[] levels;
+    private final double[] rates;
+    private final String[] texts;
+
+    Rates() {
+      levels = new int[0];
+      rates = new double[0];
+      texts = new String[0];
+    }
+
+    Rates(SortedMap<Integer, String> byLevel) {
+      final int size = byLevel.size();
+      levels = new int[size];
+      rates = new double[size];
+      texts = new String[size];
+      int i = 0;
+      for (Map.Entry<Integer, String> entry : byLevel.entrySet()) {
+        levels[i] = entry.getKey();
+        texts[i] = entry.getValue();
+        rates[i] = Double.parseDouble(entry.getValue());
+        i++;
+      }
+    }
+
+    /**
+     * @return the index of the rate for the level, or -1 if the level is not sampled
+     */
+    int indexOf(int level) {
+      for (int i = 0; i < levels.length; i++) {
+        if (levels[i] >= level) {
+          return i;
+        }
+      }
+      return -1;
+    }
+  }
+
+  /**
+   * The rates compiled into a trie, with the rates of the loggers seen so far.
+   * Replaced as a whole when the rates change.
+   */
+  private static final class Rules {
+    private final CategoryTrie<Rates> myTrie;
+    private final ConcurrentMap<String, Rates> myLoggers = new ConcurrentHashMap<String, Rates>();
+
+    Rules(CategoryTrie<Rates> trie) {
+      myTrie = trie;
+    }
+
+    Rates getRates(String loggerName) {
+      Rates rates = myLoggers.get(loggerName);
+      if (rates == null) {
+        rates = myTrie.find(loggerName);
+        if (rates == null) {
+          rates = KEEP_ALL;
+        }
+
+        if (myLoggers.size() >= MAX_CACHED_LOGGERS) {
+          myLoggers.clear();
+        }
+        myLoggers.put(loggerName, rates);
+      }
+      return rates;
+    }
+  }
+
+  /**
+   * Marsaglia's xorshift, one per thread, so sampling does not contend on a shared generator
+   */
+  private static final class XorShiftRandom {
+    private long myState;
+
+    XorShiftRandom(long seed) {
+      myState = seed != 0 ? seed : 0x9E3779B97F4A7C15L;
+    }
+
+    double nextDouble() {
+      long x = myState;
+      x ^= x << 13;
+      x ^= x >>> 7;
+      x ^= x << 17;
+      myState = x;
+      return (x >>> 11) * 0x1.0p-53;
+    }
+  }
+}
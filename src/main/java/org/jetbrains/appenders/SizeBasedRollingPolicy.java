@@ -0,0 +1,18 @@
+package org.jetbrains.appenders;
+
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Rolls over once the file grows to the given size
+ */
+public class SizeBasedRollingPolicy implements RollingPolicy {
+  private final long myMaxFileSize;
+
+  public SizeBasedRollingPolicy(long maxFileSize) {
+    myMaxFileSize = maxFileSize;
+  }
+
+  public boolean isTriggeringEvent(LoggingEvent event, long fileSize, long fileAge, long fileEvents) {
+    return fileSize >= myMaxFileSize;
+  }
+}
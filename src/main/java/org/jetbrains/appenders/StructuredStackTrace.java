@@ -0,0 +1,125 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.appenders;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Renders a throwable as a JSON array with one element per line of its stack trace, e.g.
+ * <pre>
+ * ["java.lang.RuntimeException: Failed", "at com.example.Service.call(Service.java:42)", ...,
+ *  "Caused by: java.io.IOException: Closed", "at com.example.Client.read(Client.java:7)", "... 12 more"]
+ * </pre>
+ * The lines are built from {@link Throwable#getStackTrace()} instead of printing the throwable.
+ * Frames a cause shares with its enclosing trace are folded the same way as
+ * {@link Throwable#printStackTrace()} does, and the output can be limited by the number
+ * of frames and by its length, in which case the last element is {@code "... truncated"}.
+ */
+final class StructuredStackTrace {
+    static final String TRUNCATED = "... truncated";
+
+    private final StringBuilder buf;
+    private final int start;
+    private final int maxLength;
+    private int framesLeft;
+
+    private StructuredStackTrace(StringBuilder buf, int maxFrames, int maxLength) {
+        this.buf = buf;
+        this.start = buf.length();
+        this.maxLength = maxLength > 0 ? maxLength : Integer.MAX_VALUE;
+        this.framesLeft = maxFrames > 0 ? maxFrames : Integer.MAX_VALUE;
+    }
+
+    /**
+     * @param maxFrames maximum number of frames over the whole cause chain, 0 means no limit
+     * @param maxLength maximum number of characters appended, 0 means no limit;
+     *                  the closing bracket and the truncation marker may exceed it
+     */
+    static void append(StringBuilder buf, Throwable throwable, int maxFrames, int maxLength) {
+        StructuredStackTrace trace = new StructuredStackTrace(buf, maxFrames, maxLength);
+        buf.append('[');
+        if (!trace.appendChain(throwable)) {
+            trace.appendLine(TRUNCATED, true);
+        }
+        buf.append(']');
+    }
+
+    /**
+     * @return false if the output was truncated
+     */
+    private boolean appendChain(Throwable throwable) {
+        List<Throwable> seen = new ArrayList<Throwable>(4);
+        StackTraceElement[] enclosing = null;
+        String caption = "";
+
+        for (Throwable t = throwable; t != null; t = t.getCause()) {
+            for (Throwable s : seen) {
+                if (s == t) {
+                    return appendLine("[CIRCULAR REFERENCE: " + t + "]", false);
+                }
+            }
+            seen.add(t);
+
+            if (!appendLine(caption + t, false)) {
+                return false;
+            }
+
+            StackTraceElement[] frames = t.getStackTrace();
+            int common = enclosing == null ? 0 : framesInCommon(frames, enclosing);
+            for (int i = 0, len = frames.length - common; i < len; i++) {
+                if (framesLeft == 0 || !appendLine("at " + frames[i], false)) {
+                    return false;
+                }
+                framesLeft--;
+            }
+            if (common != 0 && !appendLine("... " + common + " more", false)) {
+                return false;
+            }
+
+            enclosing = frames;
+            caption = "Caused by: ";
+        }
+        return true;
+    }
+
+    /**
+     * @param force append even if the line does not fit into {@code maxLength}
+     * @return false if the line did not fit and was not appended
+     */
+    private boolean appendLine(String line, boolean force) {
+        int mark = buf.length();
+        if (mark != start + 1) {
+            buf.append(',');
+        }
+        buf.append('"');
+        JsonLayout.appendValue(buf, line);
+        buf.append('"');
+        if (!force && buf.length() - start > maxLength) {
+            buf.setLength(mark);
+            return false;
+        }
+        return true;
+    }
+
+    private static int framesInCommon(StackTraceElement[] frames, StackTraceElement[] enclosing) {
+        int m = frames.length - 1;
+        int n = enclosing.length - 1;
+        while (m >= 0 && n >= 0 && frames[m].equals(enclosing[n])) {
+            m--;
+            n--;
+        }
+        return frames.length - 1 - m;
+    }
+}
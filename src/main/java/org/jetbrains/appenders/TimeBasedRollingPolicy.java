@@ -0,0 +1,20 @@
+package org.jetbrains.appenders;
+
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Rolls over on the first event at least the given time after the file was opened.
+ * The time is taken from the events, so a file of an idle application stays
+ * open until the next event, and the clock is not read once more per event.
+ */
+public class TimeBasedRollingPolicy implements RollingPolicy {
+  private final long myInterval;
+
+  public TimeBasedRollingPolicy(long intervalMillis) {
+    myInterval = intervalMillis;
+  }
+
+  public boolean isTriggeringEvent(LoggingEvent event, long fileSize, long fileAge, long fileEvents) {
+    return fileAge >= myInterval;
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.appenders;
+
+/**
+ * Renders event timestamps as UTC ISO-8601 strings, e.g. {@code 2013-11-17T10:21:41.863Z}.
+ * <p/>
+ * The {@code yyyy-MM-ddTHH:mm:ss} part is computed once per second and cached, so most
+ * events only write the fraction digits. Instances are not thread-safe, {@link JsonLayout}
+ * keeps one per thread.
+ */
+final class TimestampEncoder {
+    static final int MILLIS = 3;
+    static final int MICROS = 6;
+
+    private static final long MILLIS_PER_SECOND = 1000L;
+    private static final long SECONDS_PER_DAY = 24L * 60 * 60;
+
+    private final char[] prefix = new char[19];
+    private long cachedSecond = Long.MIN_VALUE;
+    private boolean cachedPrefixValid;
+    private String outOfRangePrefix;
+
+    /**
+     * Appends the ISO-8601 representation of the given time.
+     *
+     * @param precision number of fraction digits, {@link #MILLIS} or {@link #MICROS};
+     *                  log4j only records milliseconds, so the micro digits are always zero
+     */
+    void appendIso(StringBuilder out, long timeMillis, int precision) {
+        long second = floorDiv(timeMillis, MILLIS_PER_SECOND);
+        int millis = (int) (timeMillis - second * MILLIS_PER_SECOND);
+
+        if (second != cachedSecond) {
+            renderPrefix(second);
+            cachedSecond = second;
+        }
+        if (cachedPrefixValid) {
+            out.append(prefix, 0, prefix.length);
+        } else {
+            out.append(outOfRangePrefix);
+        }
+
+        out.append('.')
+            .append((char) ('0' + millis / 100))
+            .append((char) ('0' + millis / 10 % 10))
+            .append((char) ('0' + millis % 10));
+        for (int i = MILLIS; i < precision; i++) {
+            out.append('0');
+        }
+        out.append('Z');
+    }
+
+    static void appendEpochMillis(StringBuilder out, long timeMillis) {
+        out.append(timeMillis);
+    }
+
+    private void renderPrefix(long epochSecond) {
+        long epochDay = floorDiv(epochSecond, SECONDS_PER_DAY);
+        int secondOfDay = (int) (epochSecond - epochDay * SECONDS_PER_DAY);
+
+        // civil-from-days, see http://howardhinnant.github.io/date_algorithms.html
+        long z = epochDay + 719468;
+        long era = floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        int hour = secondOfDay / 3600;
+        int minute = secondOfDay / 60 % 60;
+        int second = secondOfDay % 60;
+
+        if (year < 0 || year > 9999) {
+            // not representable with 4 digits; such timestamps are not worth optimizing
+            StringBuilder sb = new StringBuilder(24).append(year);
+            sb.append('-');
+            append2(sb, month);
+            sb.append('-');
+            append2(sb, day);
+            sb.append('T');
+            append2(sb, hour);
+            sb.append(':');
+            append2(sb, minute);
+            sb.append(':');
+            append2(sb, second);
+            outOfRangePrefix = sb.toString();
+            cachedPrefixValid = false;
+            return;
+        }
+
+        int y = (int) year;
+        prefix[0] = (char) ('0' + y / 1000);
+        prefix[1] = (char) ('0' + y / 100 % 10);
+        prefix[2] = (char) ('0' + y / 10 % 10);
+        prefix[3] = (char) ('0' + y % 10);
+        prefix[4] = '-';
+        set2(5, month);
+        prefix[7] = '-';
+        set2(8, day);
+        prefix[10] = 'T';
+        set2(11, hour);
+        prefix[13] = ':';
+        set2(14, minute);
+        prefix[16] = ':';
+        set2(17, second);
+        cachedPrefixValid = true;
+    }
+
+    private void set2(int pos, int value) {
+        prefix[pos] = (char) ('0' + value / 10);
+        prefix[pos + 1] = (char) ('0' + value % 10);
+    }
+
+    private static void append2(StringBuilder out, int value) {
+        out.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+    }
+
+    private static long floorDiv(long x, long y) {
+        long r = x / y;
+        if ((x % y != 0) && ((x ^ y) < 0)) {
+            r--;
+        }
+        return r;
+    }
+}
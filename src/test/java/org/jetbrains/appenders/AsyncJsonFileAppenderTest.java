@@ -0,0 +1,141 @@
+package org.jetbrains.appenders;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+public class AsyncJsonFileAppenderTest {
+  private File home;
+  private AsyncJsonFileAppender appender;
+
+  @Before
+  public void before() throws IOException {
+    home = File.createTempFile("aaa", "bbb");
+    Paths.delete(home);
+    //noinspection ResultOfMethodCallIgnored
+    home.mkdirs();
+    Assert.assertTrue(home.isDirectory());
+
+    appender = new AsyncJsonFileAppender();
+    appender.setFile(new File(home, "log").getPath());
+    appender.setMaximumFileSize(100 * 1024 * 1024);
+  }
+
+  @After
+  public void after() {
+    appender.close();
+    Logger.getRootLogger().removeAllAppenders();
+    if (home != null) {
+      Paths.delete(home);
+    }
+  }
+
+  @Test
+  public void test_writes_events_from_many_threads() throws Exception {
+    appender.setQueueSize(64);
+    appender.activateOptions();
+    Logger.getRootLogger().removeAllAppenders();
+    Logger.getRootLogger().addAppender(appender);
+
+    final int threadCount = 4;
+    final int eventsPerThread = 500;
+    final List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < threadCount; t++) {
+      final int threadId = t;
+      threads.add(new Thread("writer-" + t) {
+        @Override
+        public void run() {
+          MDC.put("thread_id", String.valueOf(threadId));
+          for (int i = 0; i < eventsPerThread; i++) {
+            Logger.getLogger(getClass()).warn("event " + i);
+          }
+          MDC.remove("thread_id");
+        }
+      });
+    }
+    for (Thread thread : threads) thread.start();
+    for (Thread thread : threads) thread.join();
+
+    appender.close();
+
+    final List<String> lines = readLines();
+    Assert.assertEquals(threadCount * eventsPerThread, lines.size());
+    Assert.assertEquals(0, appender.getDroppedEventCount());
+    for (String line : lines) {
+      // thread state is captured on the logging thread, not on the writer
+      final String threadName = line.replaceAll(".*\"thread\":\"(writer-\\d)\".*", "$1");
+      Assert.assertTrue(line, line.contains("\"thread_id\":\"" + threadName.substring("writer-".length()) + "\""));
+    }
+  }
+
+  @Test
+  public void test_drop_oldest_when_full() throws Exception {
+    appender.setQueueSize(4);
+    appender.setBatchSize(1);
+    appender.setOverflowPolicy(AsyncJsonFileAppender.OVERFLOW_DROP_OLDEST);
+    appender.activateOptions();
+
+    final int total = 100;
+    //the writer thread cannot write while we hold the appender lock
+    synchronized (appender) {
+      for (int i = 0; i < total; i++) {
+        appender.doAppend(event(Level.INFO, "event " + i));
+      }
+    }
+    appender.close();
+
+    final List<String> lines = readLines();
+    Assert.assertTrue(appender.getDroppedEventCount() > 0);
+    Assert.assertEquals(total, lines.size() + appender.getDroppedEventCount());
+    Assert.assertTrue(lines.get(lines.size() - 1).contains("\"message\":\"event " + (total - 1) + "\""));
+  }
+
+  @Test
+  public void test_drop_below_level_when_full() throws Exception {
+    appender.setQueueSize(4);
+    appender.setBatchSize(1);
+    appender.setOverflowPolicy(AsyncJsonFileAppender.OVERFLOW_DROP_BELOW_LEVEL);
+    appender.setDiscardLevel(Level.WARN);
+    appender.activateOptions();
+
+    final int total = 100;
+    synchronized (appender) {
+      for (int i = 0; i < total; i++) {
+        appender.doAppend(event(Level.DEBUG, "event " + i));
+      }
+    }
+    appender.close();
+
+    final List<String> lines = readLines();
+    Assert.assertTrue(appender.getDroppedEventCount() > 0);
+    Assert.assertEquals(total, lines.size() + appender.getDroppedEventCount());
+  }
+
+  private LoggingEvent event(Level level, String message) {
+    final Logger logger = Logger.getLogger(getClass());
+    return new LoggingEvent(Logger.class.getName(), logger, level, message, null);
+  }
+
+  private List<String> readLines() throws IOException {
+    final List<String> lines = new ArrayList<String>();
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(new File(home, "log.1.json")), "utf-8"));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lines.add(line);
+      }
+    } finally {
+      reader.close();
+    }
+    return lines;
+  }
+}
@@ -116,4 +116,87 @@ public class CategoryFilterTest {
     Assert.assertThat(consoleWriter.toString(), containsString("aaa"));
   }
 
+  @Test
+  public void should_filter_events_by_many_categories() {
+    consoleFilter.setDenyCategories("qqq, org.jetbrains:INFO, zzz.xxx:DEBUG");
+
+    Logger.getLogger("qqq.www").error("aaa");
+    Logger.getLogger(getClass()).info("bbb");
+    Logger.getLogger(getClass()).warn("ccc");
+    Logger.getLogger("zzz.xxx").info("ddd");
+    Logger.getLogger("zzz.xxxx.yyy").debug("eee");
+    Logger.getLogger("zzz").debug("fff");
+
+    final String text = consoleWriter.toString();
+    Assert.assertThat(text, not(containsString("aaa")));
+    Assert.assertThat(text, not(containsString("bbb")));
+    Assert.assertThat(text, containsString("ccc"));
+    Assert.assertThat(text, containsString("ddd"));
+    Assert.assertThat(text, not(containsString("eee")));
+    Assert.assertThat(text, containsString("fff"));
+  }
+
+  @Test
+  public void should_apply_the_longest_category() {
+    consoleFilter.setDenyCategories("org.jetbrains:WARN, org.jetbrains.appenders:INFO");
+
+    Logger.getLogger(getClass()).warn("aaa");
+    Logger.getLogger("org.jetbrains.qqq").warn("bbb");
+
+    final String text = consoleWriter.toString();
+    Assert.assertThat(text, containsString("aaa"));
+    Assert.assertThat(text, not(containsString("bbb")));
+  }
+
+  @Test
+  public void should_use_max_deny_level_for_categories_without_level() {
+    consoleFilter.setDenyCategories("org.jetbrains");
+    consoleFilter.setMaxDenyLevel(Level.INFO);
+
+    Logger.getLogger(getClass()).info("aaa");
+    Logger.getLogger(getClass()).warn("bbb");
+
+    final String text = consoleWriter.toString();
+    Assert.assertThat(text, not(containsString("aaa")));
+    Assert.assertThat(text, containsString("bbb"));
+  }
+
+  @Test
+  public void should_match_categories_as_prefixes() {
+    final CategoryTrie<String> trie = new CategoryTrie<String>();
+    trie.put("org.jet", "a");
+    trie.put("org.jetbrains", "b");
+    trie.put("org.jetbrains.", "c");
+    trie.put("com", "d");
+
+    Assert.assertEquals("a", trie.find("org.jetty.server"));
+    Assert.assertEquals("b", trie.find("org.jetbrains"));
+    Assert.assertEquals("b", trie.find("org.jetbrainsfoo.bar"));
+    Assert.assertEquals("c", trie.find("org.jetbrains.appenders"));
+    Assert.assertEquals("d", trie.find("company"));
+    Assert.assertNull(trie.find("org.je"));
+    Assert.assertNull(trie.find("org"));
+    Assert.assertNull(trie.find("net.com"));
+  }
+
+  @Test
+  public void should_apply_changed_categories_to_seen_loggers() {
+    consoleFilter.setDenyCategory("org.jetbrains");
+    Logger.getLogger(getClass()).info("aaa");
+
+    consoleFilter.setDenyCategory("qqq");
+    Logger.getLogger(getClass()).info("bbb");
+
+    consoleFilter.setMaxDenyLevel(Level.INFO);
+    consoleFilter.setDenyCategory("org.jetbrains");
+    Logger.getLogger(getClass()).info("ccc");
+    Logger.getLogger(getClass()).warn("ddd");
+
+    final String text = consoleWriter.toString();
+    Assert.assertThat(text, not(containsString("aaa")));
+    Assert.assertThat(text, containsString("bbb"));
+    Assert.assertThat(text, not(containsString("ccc")));
+    Assert.assertThat(text, containsString("ddd"));
+  }
+
 }
@@ -49,6 +49,26 @@ public class JsonFileAppenderTest {
     Logger.getLogger(getClass()).warn(message);
     Logger.getRootLogger().removeAllAppenders();
 
+    final String text = readLog();
+    Assert.assertTrue(text.contains(message));
+  }
+
+  @Test
+  public void test_json_appender_writes_utf8() throws IOException {
+    final String message = "\u043f\u0440\u0438\u0432\u0435\u0442 \u4e16\u754c \ud83d\ude00";
+
+    Logger.getLogger(getClass()).warn(message);
+    Logger.getLogger(getClass()).warn("with exception", new RuntimeException(message));
+    Logger.getRootLogger().removeAllAppenders();
+
+    final String text = readLog();
+    final String[] lines = text.split("\n");
+    Assert.assertEquals(2, lines.length);
+    Assert.assertTrue(lines[0].contains("\"message\":\"" + message + "\""));
+    Assert.assertTrue(lines[1].contains("\"message\":\"" + message + "\""));
+  }
+
+  private String readLog() throws IOException {
     dumpFiles();
 
     int off = 0;
@@ -66,8 +86,7 @@ public class JsonFileAppenderTest {
 
     final String text = new String(allData, 0, off, "utf-8");
     System.out.println(text);
-
-    Assert.assertTrue(text.contains(message));
+    return text;
   }
 
 
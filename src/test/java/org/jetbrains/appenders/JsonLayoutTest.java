@@ -14,22 +14,32 @@
 package org.jetbrains.appenders;
 
 import com.jayway.jsonassert.JsonAsserter;
+import com.jayway.jsonpath.JsonPath;
+import org.apache.log4j.Category;
 import org.apache.log4j.ConsoleAppender;
 import org.apache.log4j.FileAppender;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.apache.log4j.MDC;
 import org.apache.log4j.NDC;
+import org.apache.log4j.spi.LocationInfo;
+import org.apache.log4j.spi.LoggingEvent;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TestName;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.StringWriter;
 import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.jayway.jsonassert.JsonAssert.with;
+import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.hasItems;
@@ -125,6 +135,61 @@ public class JsonLayoutTest {
             .assertThat("$.renamed_location.line", notNullValue());
     }
 
+    @Test
+    public void testLocationOfCallSites() throws Exception {
+        consoleLayout.setIncludedFields("location");
+        consoleLayout.activateOptions();
+
+        int[] lineNumbers = new int[4];
+        for (int i = 0; i < 2; i++) {
+            lineNumbers[i * 2] = new Throwable().getStackTrace()[0].getLineNumber() + 1;
+            logger.info("first call site");
+            lineNumbers[i * 2 + 1] = new Throwable().getStackTrace()[0].getLineNumber() + 1;
+            logger.info("second call site");
+        }
+
+        String[] lines = consoleWriter.toString().split("\n");
+        assertThat(lines.length, equalTo(4));
+        for (int i = 0; i < lines.length; i++) {
+            with(lines[i])
+                .assertThat("$.location.class", equalTo(getClass().getName()))
+                .assertThat("$.location.file", equalTo(getClass().getSimpleName() + ".java"))
+                .assertThat("$.location.method", equalTo(testName.getMethodName()))
+                .assertThat("$.location.line", equalTo(String.valueOf(lineNumbers[i])));
+        }
+    }
+
+    @Test
+    public void testLocationOutsideOfLogger() throws Exception {
+        consoleLayout.setIncludedFields("location");
+        consoleLayout.activateOptions();
+
+        // the logger is not on the stack, so the location comes from the event itself
+        LoggingEvent event = new LoggingEvent(Logger.class.getName(), logger, Level.INFO, "Hello World", null);
+        with(consoleLayout.format(event))
+            .assertThat("$.location.class", equalTo(event.getLocationInformation().getClassName()))
+            .assertThat("$.location.method", equalTo(event.getLocationInformation().getMethodName()))
+            .assertThat("$.location.line", equalTo(event.getLocationInformation().getLineNumber()));
+    }
+
+    @Test
+    public void testLocationOfDispatchedEvent() throws Exception {
+        consoleLayout.setIncludedFields("location");
+        consoleLayout.activateOptions();
+
+        // e.g. received by a SocketNode
+        LocationInfo origin = new LocationInfo("Client.java", "com.remote.Client", "call", "42");
+        // Category is on the stack while the event is dispatched
+        logger.callAppenders(new LoggingEvent(Category.class.getName(), logger, System.currentTimeMillis(), Level.INFO,
+            "Hello World", Thread.currentThread().getName(), null, null, origin, null));
+
+        with(consoleWriter.toString())
+            .assertThat("$.location.class", equalTo("com.remote.Client"))
+            .assertThat("$.location.file", equalTo("Client.java"))
+            .assertThat("$.location.method", equalTo("call"))
+            .assertThat("$.location.line", equalTo("42"));
+    }
+
     @Test
     public void testJSONIsValid() throws Exception {
         final StringBuilder message = new StringBuilder("Hello World: ");
@@ -173,6 +238,79 @@ public class JsonLayoutTest {
             .assertThat("$.@version", equalTo("1"));
     }
 
+    @Test
+    public void testMdcIncludedKeys() throws Exception {
+        consoleLayout.setMdcIncludedKeys("mdc_key_1, mdc\"key, mdc_missing");
+        consoleLayout.activateOptions();
+
+        MDC.put("mdc_key_1", "mdc_val_1");
+        MDC.put("mdc_key_2", "mdc_val_2");
+        MDC.put("mdc\"key", 3);
+
+        logger.info("Hello World");
+
+        with(consoleWriter.toString())
+            .assertThat("$.mdc.mdc_key_1", equalTo("mdc_val_1"))
+            .assertThat("$.mdc.mdc_key_2", nullValue())
+            .assertThat("$.mdc['mdc\"key']", equalTo("3"))
+            .assertThat("$.mdc.mdc_missing", nullValue());
+    }
+
+    @Test
+    public void testMdcExcludedKeys() throws Exception {
+        consoleLayout.setMdcExcludedKeys("mdc_key_2");
+        consoleLayout.activateOptions();
+
+        MDC.put("mdc_key_1", "mdc_val_1");
+        MDC.put("mdc_key_2", "mdc_val_2");
+
+        logger.info("Hello World");
+
+        with(consoleWriter.toString())
+            .assertThat("$.mdc.mdc_key_1", equalTo("mdc_val_1"))
+            .assertThat("$.mdc.mdc_key_2", nullValue());
+    }
+
+    @Test
+    public void testMdcWithoutIncludedKeysIsOmitted() throws Exception {
+        consoleLayout.setMdcIncludedKeys("mdc_key_1,mdc_key_2");
+        consoleLayout.setMdcExcludedKeys("mdc_key_2");
+        consoleLayout.activateOptions();
+
+        MDC.remove("mdc_key_1");
+        MDC.put("mdc_key_2", "mdc_val_2");
+
+        logger.info("Hello World");
+
+        with(consoleWriter.toString())
+            .assertThat("$.mdc", nullValue())
+            .assertThat("$.message", equalTo("Hello World"));
+    }
+
+    @Test
+    public void testExcludeNestedFields() throws Exception {
+        consoleLayout.setExcludedFields("exception.stacktrace,message");
+        consoleLayout.activateOptions();
+
+        logger.error("Hello World", new RuntimeException("Hello World Exception"));
+
+        with(consoleWriter.toString())
+            .assertThat("$.exception.message", equalTo("Hello World Exception"))
+            .assertThat("$.exception.class", equalTo(RuntimeException.class.getName()))
+            .assertThat("$.exception.stacktrace", nullValue())
+            .assertThat("$.message", nullValue())
+            .assertThat("$.level", equalTo("ERROR"));
+    }
+
+    @Test
+    public void testOnlyOptionalFields() throws Exception {
+        consoleLayout.setExcludedFields("level,logger,message,mdc,ndc,host,@timestamp,thread,@version");
+        consoleLayout.activateOptions();
+
+        logger.info("Hello World");
+        assertThat(consoleWriter.toString(), equalTo("{}\n"));
+    }
+
     @Test
     public void testAddTags() throws Exception {
         consoleLayout.setTags("json,logstash");
@@ -195,6 +333,44 @@ public class JsonLayoutTest {
             .assertThat("$.shipper", equalTo("logstash"));
     }
 
+    @Test
+    public void testOptionsChangedWithoutActivation() throws Exception {
+        logger.info("Hello World");
+        consoleLayout.setHostName("other");
+        consoleLayout.setIncludedFields("location");
+        logger.info("Hello World again");
+
+        String[] lines = consoleWriter.toString().split("\n");
+        assertThat(lines.length, equalTo(2));
+        with(lines[0])
+            .assertThat("$.host", equalTo(InetAddress.getLocalHost().getHostName()))
+            .assertThat("$.location", nullValue());
+        with(lines[1])
+            .assertThat("$.host", equalTo("other"))
+            .assertThat("$.location.method", equalTo(testName.getMethodName()));
+    }
+
+    @Test
+    public void testStaticFieldsAreEscaped() throws Exception {
+        consoleLayout.setFields("type:log\"4j,path/dir:C:\\logs");
+        consoleLayout.setTags("json\\,logstash");
+        consoleLayout.setHostName("vm\"1");
+        consoleLayout.activateOptions();
+
+        logger.info("Hello World");
+        logger.info("Hello World again");
+
+        String[] lines = consoleWriter.toString().split("\n");
+        assertThat(lines.length, equalTo(2));
+        for (String line : lines) {
+            with(line)
+                .assertThat("$.type", equalTo("log\"4j"))
+                .assertThat("$.host", equalTo("vm\"1"))
+                .assertThat("$.tags", hasItems("json\\", "logstash"))
+                .assertThat("$.@version", equalTo("1"));
+        }
+    }
+
     @Test
     public void testRenameFieldLabel() throws Exception {
         consoleLayout.setRenamedFieldLabels("level:renamed_level,tags:renamed_tags,@version:@renamed_version");
@@ -332,4 +508,187 @@ public class JsonLayoutTest {
             .assertThat("$.message", equalTo("H\"e\\l/\nl\ro\u0000W\bo\tr\fl\u0001d"));
     }
 
+    @Test
+    public void testEscapeRuns() throws Exception {
+        logger.info("plain run \u2028 then \u00e9\u0085/end");
+
+        String json = consoleWriter.toString();
+        assertThat(json, containsString("\"plain run \\u2028 then \u00e9\\u0085\\/end\""));
+        with(json).assertThat("$.message", equalTo("plain run \u2028 then \u00e9\u0085/end"));
+    }
+
+    @Test
+    public void testExceptionCache() throws Exception {
+        JsonLayout uncachedLayout = new JsonLayout();
+        uncachedLayout.activateOptions();
+        consoleLayout.setExceptionCacheSize(16);
+        consoleLayout.activateOptions();
+
+        for (int i = 0; i < 3; i++) {
+            // a new exception with the same stack trace on every iteration
+            RuntimeException exception = newException("Same \"message\"", null);
+            String expected = JsonPath.read(uncachedLayout.format(exceptionEvent(exception)), "$.exception.stacktrace");
+            with(consoleLayout.format(exceptionEvent(exception)))
+                .assertThat("$.exception.stacktrace", equalTo(expected));
+        }
+        assertThat(consoleLayout.getExceptionCacheMisses(), equalTo(1L));
+        assertThat(consoleLayout.getExceptionCacheHits(), equalTo(2L));
+
+        // a different message or cause must not be served from the cache
+        with(consoleLayout.format(exceptionEvent(newException("Other message", null))))
+            .assertThat("$.exception.stacktrace", startsWith(RuntimeException.class.getName() + ": Other message"));
+        with(consoleLayout.format(exceptionEvent(newException("Same \"message\"", new IllegalStateException("cause")))))
+            .assertThat("$.exception.stacktrace", containsString("Caused by: " + IllegalStateException.class.getName() + ": cause"));
+        assertThat(consoleLayout.getExceptionCacheMisses(), equalTo(3L));
+        assertThat(consoleLayout.getExceptionCacheHits(), equalTo(2L));
+    }
+
+    @Test
+    public void testStructuredStacktrace() throws Exception {
+        consoleLayout.setStructuredStacktrace(true);
+        consoleLayout.activateOptions();
+
+        IllegalStateException cause = new IllegalStateException("cause");
+        RuntimeException exception = newException("outer", cause);
+        String json = consoleLayout.format(exceptionEvent(exception));
+
+        List<String> lines = JsonPath.read(json, "$.exception.stacktrace");
+        assertThat(lines.get(0), equalTo(exception.toString()));
+        assertThat(lines.get(1), equalTo("at " + exception.getStackTrace()[0]));
+        assertThat(lines.size(), equalTo(1 + exception.getStackTrace().length + 3));
+        assertThat(lines.get(exception.getStackTrace().length + 1), equalTo("Caused by: " + cause));
+        // everything but the test method's own frame is shared with the enclosing trace
+        assertThat(lines.get(exception.getStackTrace().length + 2), equalTo("at " + cause.getStackTrace()[0]));
+        assertThat(lines.get(lines.size() - 1), equalTo("... " + (cause.getStackTrace().length - 1) + " more"));
+    }
+
+    @Test
+    public void testStructuredStacktraceLimits() throws Exception {
+        consoleLayout.setStructuredStacktrace(true);
+        consoleLayout.setMaxStacktraceFrames(2);
+        consoleLayout.activateOptions();
+
+        RuntimeException exception = newException("outer", new IllegalStateException("cause"));
+        List<String> lines = JsonPath.read(consoleLayout.format(exceptionEvent(exception)), "$.exception.stacktrace");
+        assertThat(lines, equalTo(Arrays.asList(
+            exception.toString(),
+            "at " + exception.getStackTrace()[0],
+            "at " + exception.getStackTrace()[1],
+            "... truncated")));
+
+        consoleLayout.setMaxStacktraceFrames(0);
+        consoleLayout.setMaxStacktraceLength(200);
+        consoleLayout.activateOptions();
+
+        String json = consoleLayout.format(exceptionEvent(exception));
+        String stacktrace = json.substring(json.indexOf("\"stacktrace\":") + "\"stacktrace\":".length());
+        stacktrace = stacktrace.substring(0, stacktrace.indexOf(']') + 1);
+        assertThat(stacktrace.length() <= 200 + ",\"... truncated\"]".length(), equalTo(true));
+        lines = JsonPath.read(json, "$.exception.stacktrace");
+        assertThat(lines.get(0), equalTo(exception.toString()));
+        assertThat(lines.get(lines.size() - 1), equalTo("... truncated"));
+    }
+
+    private static RuntimeException newException(String message, Throwable cause) {
+        return new RuntimeException(message, cause);
+    }
+
+    private LoggingEvent exceptionEvent(Throwable throwable) {
+        return new LoggingEvent(Logger.class.getName(), logger, Level.ERROR, "Hello World", throwable);
+    }
+
+    @Test
+    public void testTimestampPrecision() throws Exception {
+        consoleLayout.setTimestampPrecision("micros");
+        consoleLayout.activateOptions();
+
+        logger.info("Hello World");
+
+        String timestamp = JsonPath.read(consoleWriter.toString(), "$.@timestamp");
+        assertThat(timestamp.matches("\\d{4}-\\d{2}-\\d{2}T\\d{2}:\\d{2}:\\d{2}\\.\\d{3}000Z"), equalTo(true));
+    }
+
+    @Test
+    public void testTimestampAsEpochMillis() throws Exception {
+        consoleLayout.setTimestampAsEpochMillis(true);
+        consoleLayout.activateOptions();
+
+        long before = System.currentTimeMillis();
+        logger.info("Hello World");
+        long after = System.currentTimeMillis();
+
+        Number timestamp = JsonPath.read(consoleWriter.toString(), "$.@timestamp");
+        assertThat(timestamp.longValue() >= before && timestamp.longValue() <= after, equalTo(true));
+    }
+
+    @Test
+    public void testFormatToStream() throws Exception {
+        final StringBuilder message = new StringBuilder("Hello World: \u00e9\u4e16\ud83d\ude00 \ud800 ");
+        for(int c = Character.MIN_VALUE; c <= Character.MAX_VALUE; c++) {
+            message.append((char)c);
+        }
+        LoggingEvent event = new LoggingEvent(Logger.class.getName(), logger, Level.INFO, message.toString(), null);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int written = consoleLayout.format(event, out);
+
+        assertThat(written, equalTo(out.size()));
+        assertThat(Arrays.equals(out.toByteArray(), consoleLayout.format(event).getBytes("UTF-8")), equalTo(true));
+    }
+
+    @Test
+    public void testConcurrentFormat() throws Exception {
+        final int threadCount = 8;
+        final int eventsPerThread = 1000;
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final CountDownLatch start = new CountDownLatch(1);
+
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final String threadMessage = "message from thread " + t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < eventsPerThread; i++) {
+                        String message = threadMessage + " #" + i;
+                        LoggingEvent event = new LoggingEvent(Logger.class.getName(), logger, Level.INFO, message, null);
+                        String json = consoleLayout.format(event);
+                        if (!json.contains("\"message\":\"" + message + "\"") || !json.endsWith("}\n")) {
+                            failure.compareAndSet(null, json);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(failure.get(), nullValue());
+    }
+
+    @Test
+    public void testReentrantFormat() throws Exception {
+        Object message = new Object() {
+            @Override
+            public String toString() {
+                LoggingEvent inner = new LoggingEvent(Logger.class.getName(), logger, Level.INFO, "inner", null);
+                return "outer " + consoleLayout.format(inner).trim();
+            }
+        };
+
+        logger.info(message);
+
+        with(consoleWriter.toString())
+            .assertThat("$.message", startsWith("outer {"))
+            .assertThat("$.message", containsString("\"message\":\"inner\""));
+    }
+
 }
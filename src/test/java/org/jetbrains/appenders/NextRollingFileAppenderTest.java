@@ -1,15 +1,26 @@
 package org.jetbrains.appenders;
 
+import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.spi.LoggingEvent;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.GZIPInputStream;
 
 /**
  * @author Eugene Petrenko (eugene.petrenko@gmail.com)
@@ -43,6 +54,7 @@ public class NextRollingFileAppenderTest {
 
   @After
   public void after() {
+    appender.close();
     if (home != null) {
       Paths.delete(home);
     }
@@ -70,7 +82,7 @@ public class NextRollingFileAppenderTest {
 
 
     final Set<String> names = dumpFiles();
-    Assert.assertTrue(home.list().length <= 3);
+    Assert.assertTrue(names.size() <= 3);
 
     //make sure names are not too long
     for (String name : names) {
@@ -102,7 +114,7 @@ public class NextRollingFileAppenderTest {
     Logger.getRootLogger().warn("aaa");
     Logger.getRootLogger().warn("aaa");
 
-    Assert.assertTrue(home.list().length <= 6);
+    Assert.assertTrue(dumpFiles().size() <= 6);
   }
 
   @Test
@@ -114,6 +126,554 @@ public class NextRollingFileAppenderTest {
     assertFiles("log.1", "log.2", "log.3", "log.4", "log.5");
   }
 
+  @Test
+  public void test_continues_after_newest_file() throws IOException {
+    file("log.1", "log.2", "log.4");
+    Assert.assertTrue(new File(home, "log.1").setLastModified(1000000000L));
+    Assert.assertTrue(new File(home, "log.2").setLastModified(2000000000L));
+    Assert.assertTrue(new File(home, "log.4").setLastModified(3000000000L));
+    initAppender();
+
+    assertFiles("log.1", "log.2", "log.4", "log.5");
+  }
+
+  @Test
+  public void test_removes_files_of_previous_runs() throws IOException {
+    appender.setMaxBackupIndex(3);
+    file("log.1", "log.2", "log.50");
+    Assert.assertTrue(new File(home, "log.50").setLastModified(1000000000L));
+    Assert.assertTrue(new File(home, "log.1").setLastModified(2000000000L));
+    Assert.assertTrue(new File(home, "log.2").setLastModified(3000000000L));
+    initAppender();
+
+    Logger.getRootLogger().warn("aaa");
+    Assert.assertFalse(dumpFiles().contains("log.50"));
+  }
+
+  @Test
+  public void test_finishes_interrupted_cleanup() throws IOException {
+    appender.setCompression("gzip");
+    file("log.1.deleting", "log.2.compressing", "log.2.gz");
+    initAppender();
+
+    assertFiles("log.2.gz", "log.3");
+  }
+
+  @Test
+  public void test_removes_oldest_file_first() throws IOException {
+    appender.setMaxBackupIndex(4);
+    file("log.1", "log.2", "log.3");
+    Assert.assertTrue(new File(home, "log.2").setLastModified(1000000000L));
+    Assert.assertTrue(new File(home, "log.1").setLastModified(2000000000L));
+    Assert.assertTrue(new File(home, "log.3").setLastModified(3000000000L));
+    initAppender();
+
+    Logger.getRootLogger().warn("aaa");
+    assertFiles("log.1", "log.3", "log.4", "log.5");
+  }
+
+  @Test
+  public void test_removes_files_over_total_size() throws Exception {
+    appender.setMaximumFileSize(1000);
+    appender.setMaxBackupIndex(100);
+    appender.setMaxTotalSize("3000");
+    initAppender();
+
+    for (int i = 0; i < 40; i++) {
+      Logger.getRootLogger().warn("aaa" + i);
+    }
+
+    final Set<String> files = dumpFiles();
+    Assert.assertTrue("" + files, files.size() > 1);
+    long total = 0;
+    for (String name : files) {
+      total += new File(home, name).length();
+    }
+    // the current file may grow over maxFileSize by one event
+    Assert.assertTrue("" + total, total < 3000 + 500);
+  }
+
+  @Test
+  public void test_removes_expired_files() throws IOException {
+    appender.setMaxFileAge(24 * 60 * 60 * 1000L);
+    file("log.1", "log.2");
+    Assert.assertTrue(new File(home, "log.1").setLastModified(1000000000L));
+    Assert.assertTrue(new File(home, "log.2").setLastModified(1000000000L));
+    initAppender();
+
+    Logger.getRootLogger().warn("aaa");
+    assertFiles("log.3", "log.4");
+  }
+
+  @Test
+  public void test_preopens_next_file() throws Exception {
+    appender.setMaximumFileSize(2000);
+    appender.setMaxBackupIndex(100);
+    appender.setPreopenAtPercent(5);
+    initAppender();
+
+    //crosses 5% of the first file
+    Logger.getRootLogger().warn("aaa0");
+    assertFiles("log.1", "log.2");
+    Assert.assertEquals(0, new File(home, "log.2").length());
+
+    for (int i = 1; i < 20; i++) {
+      Logger.getRootLogger().warn("aaa" + i);
+    }
+    appender.close();
+
+    final StringBuilder text = new StringBuilder();
+    for (String name : dumpFiles()) {
+      text.append(Paths.readText(new File(home, name)));
+    }
+    for (int i = 0; i < 20; i++) {
+      Assert.assertTrue(text.indexOf("\"aaa" + i + "\"") >= 0);
+    }
+    Assert.assertTrue(new File(home, "log.2").length() > 0);
+  }
+
+  @Test
+  public void test_abandons_preopened_files_twice() throws Exception {
+    final CountDownLatch busy = new CountDownLatch(1);
+    appender.setMaximumFileSize(1000);
+    appender.setMaxBackupIndex(100);
+    appender.setPreopenAtPercent(1);
+    // keeps the background thread busy, so that the preopened files are not ready in time
+    appender.setCompressionCodec(new GzipCodec() {
+      @Override
+      public OutputStream compress(OutputStream out) throws IOException {
+        try {
+          busy.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e.toString());
+        }
+        return super.compress(out);
+      }
+    });
+    initAppender();
+
+    final StringBuilder large = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      large.append('x');
+    }
+    try {
+      for (int i = 0; i < 3; i++) {
+        Logger.getRootLogger().warn("large" + i + large);
+        Logger.getRootLogger().warn("small" + i);
+      }
+    } finally {
+      busy.countDown();
+    }
+    for (int i = 3; i < 6; i++) {
+      Logger.getRootLogger().warn("large" + i + large);
+      Logger.getRootLogger().warn("small" + i);
+    }
+    appender.close();
+
+    final StringBuilder text = new StringBuilder();
+    for (String name : dumpFiles()) {
+      final File file = new File(home, name);
+      text.append(name.endsWith(".gz") ? Paths.readGzipText(file) : Paths.readText(file));
+    }
+    for (int i = 0; i < 6; i++) {
+      Assert.assertTrue("large" + i, text.indexOf("\"large" + i) >= 0);
+      Assert.assertTrue("small" + i, text.indexOf("\"small" + i + "\"") >= 0);
+    }
+  }
+
+  @Test
+  public void test_preopened_file_is_removed_on_close() throws Exception {
+    appender.setMaximumFileSize(1000);
+    appender.setPreopenAtPercent(1);
+    initAppender();
+
+    Logger.getRootLogger().warn("aaa");
+    appender.awaitHousekeeping();
+    appender.close();
+
+    assertFiles("log.1");
+  }
+
+  @Test
+  public void test_channel_output_is_written_on_error() throws Exception {
+    appender.setMaximumFileSize(1024 * 1024);
+    appender.setChannelBufferSize(64 * 1024);
+    appender.setFlushInterval(60 * 60 * 1000);
+    initAppender();
+
+    Logger.getRootLogger().warn("aaa");
+    Assert.assertEquals(0, new File(home, "log.1").length());
+
+    Logger.getRootLogger().error("bbb");
+    final String text = Paths.readText(new File(home, "log.1"));
+    Assert.assertTrue(text, text.contains("\"aaa\"") && text.contains("\"bbb\""));
+  }
+
+  @Test
+  public void test_channel_output_is_written_on_interval() throws Exception {
+    appender.setMaximumFileSize(1024 * 1024);
+    appender.setChannelBufferSize(64 * 1024);
+    appender.setFlushInterval(50);
+    initAppender();
+
+    Logger.getRootLogger().warn("aaa");
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (new File(home, "log.1").length() == 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    Assert.assertTrue(Paths.readText(new File(home, "log.1")).contains("\"aaa\""));
+  }
+
+  @Test
+  public void test_channel_output_rolls() throws Exception {
+    appender.setMaximumFileSize(1000);
+    appender.setMaxBackupIndex(100);
+    appender.setChannelBufferSize(64);
+    initAppender();
+
+    for (int i = 0; i < 20; i++) {
+      Logger.getRootLogger().warn("aaa" + i);
+    }
+    appender.close();
+
+    final Set<String> files = dumpFiles();
+    Assert.assertTrue(files.size() > 2);
+    final StringBuilder text = new StringBuilder();
+    for (String name : files) {
+      final File file = new File(home, name);
+      // a file is only rolled after it grows over the limit by one event
+      Assert.assertTrue(file.length() < 1000 + 500);
+      text.append(Paths.readText(file));
+    }
+    for (int i = 0; i < 20; i++) {
+      Assert.assertTrue(text.indexOf("\"aaa" + i + "\"") >= 0);
+    }
+  }
+
+  @Test
+  public void test_memory_mapped_output_rolls() throws Exception {
+    appender.setMaximumFileSize(1000);
+    appender.setMaxBackupIndex(100);
+    appender.setMemoryMapped(true);
+    initAppender();
+
+    for (int i = 0; i < 20; i++) {
+      Logger.getRootLogger().warn("aaa" + i);
+    }
+    appender.close();
+
+    final Set<String> files = dumpFiles();
+    Assert.assertTrue(files.size() > 2);
+    final StringBuilder text = new StringBuilder();
+    for (String name : files) {
+      final String content = Paths.readText(new File(home, name));
+      Assert.assertTrue(content.length() < 1000 + 500);
+      Assert.assertEquals("File " + name + " should be truncated", -1, content.indexOf('\0'));
+      text.append(content);
+    }
+    for (int i = 0; i < 20; i++) {
+      Assert.assertTrue(text.indexOf("\"aaa" + i + "\"") >= 0);
+    }
+  }
+
+  @Test
+  public void test_memory_mapped_output_needs_json_layout() throws Exception {
+    appender.setLayout(new PatternLayout("%m%n"));
+    appender.setMaximumFileSize(1000);
+    appender.setMemoryMapped(true);
+    initAppender();
+
+    Assert.assertFalse(appender.getMemoryMapped());
+    Logger.getRootLogger().warn("aaa\0\0");
+    appender.close();
+
+    Assert.assertEquals("aaa\0\0\n", Paths.readText(new File(home, "log.1")));
+  }
+
+  @Test
+  public void test_unwritten_tail_is_trimmed_on_start() throws Exception {
+    final File crashed = new File(home, "log.1");
+    final FileOutputStream os = new FileOutputStream(crashed);
+    try {
+      os.write("{\"message\":\"aaa\"}\n".getBytes("UTF-8"));
+      os.write(new byte[10000]);
+    } finally {
+      os.close();
+    }
+    appender.setMemoryMapped(true);
+    initAppender();
+
+    Logger.getRootLogger().warn("aaa");
+
+    assertFiles("log.1", "log.2", "log.3");
+    Assert.assertEquals("{\"message\":\"aaa\"}\n", Paths.readText(crashed));
+  }
+
+  @Test
+  public void test_zero_tail_is_kept_without_memory_mapping() throws Exception {
+    final File file = new File(home, "log.1");
+    final FileOutputStream os = new FileOutputStream(file);
+    try {
+      os.write(new byte[]{1, 0, 0});
+    } finally {
+      os.close();
+    }
+    initAppender();
+
+    Logger.getRootLogger().warn("aaa");
+
+    assertFiles("log.1", "log.2", "log.3");
+    Assert.assertEquals(3, file.length());
+  }
+
+  @Test
+  public void test_trim_trailing_zeros() throws Exception {
+    final File file = new File(home, "file");
+    final FileOutputStream os = new FileOutputStream(file);
+    try {
+      os.write(new byte[]{1, 0, 2});
+      os.write(new byte[20000]);
+    } finally {
+      os.close();
+    }
+
+    Assert.assertTrue(MappedOutputStream.trimTrailingZeros(file));
+    Assert.assertEquals(3, file.length());
+    Assert.assertFalse(MappedOutputStream.trimTrailingZeros(file));
+    Assert.assertEquals(3, file.length());
+  }
+
+  @Test
+  public void test_compresses_rolled_files() throws Exception {
+    appender.setMaximumFileSize(1000);
+    appender.setMaxBackupIndex(100);
+    appender.setCompression("gzip");
+    initAppender();
+
+    for (int i = 0; i < 20; i++) {
+      Logger.getRootLogger().warn("aaa" + i);
+    }
+    appender.close();
+
+    final Set<String> files = dumpFiles();
+    Assert.assertTrue(files.size() > 2);
+    final StringBuilder text = new StringBuilder();
+    int raw = 0;
+    for (String name : files) {
+      final File file = new File(home, name);
+      if (name.endsWith(".gz")) {
+        text.append(Paths.readGzipText(file));
+      } else {
+        // the file written last
+        raw++;
+        text.append(Paths.readText(file));
+      }
+    }
+    Assert.assertEquals(1, raw);
+    for (int i = 0; i < 20; i++) {
+      Assert.assertTrue(text.indexOf("\"aaa" + i + "\"") >= 0);
+    }
+  }
+
+  @Test
+  public void test_keeps_files_when_compression_fails() throws Exception {
+    appender.setCompressionCodec(new CompressionCodec() {
+      public String getExtension() {
+        return ".gz";
+      }
+
+      public OutputStream compress(OutputStream out) throws IOException {
+        throw new IOException("Failed to write the header");
+      }
+    });
+    initAppender();
+
+    Logger.getRootLogger().warn("aaa");
+
+    assertFiles("log.1", "log.2");
+  }
+
+  @Test
+  public void test_removes_compressed_files() throws Exception {
+    appender.setMaxBackupIndex(3);
+    appender.setCompression("gzip");
+    file("log.5");
+    initAppender();
+
+    for (int i = 0; i < 10; i++) {
+      Logger.getRootLogger().warn("aaa" + i);
+    }
+
+    final Set<String> files = dumpFiles();
+    Assert.assertTrue("" + files, files.size() <= 3);
+    for (String name : files) {
+      Assert.assertTrue(name, name.matches("log\\.\\d+(\\.gz)?"));
+    }
+  }
+
+  @Test
+  public void test_does_not_reuse_compressed_files() throws IOException {
+    appender.setCompression("gzip");
+    file("log.1.gz", "log.2.gz");
+    initAppender();
+
+    Logger.getRootLogger().warn("aaa");
+
+    assertFiles("log.1.gz", "log.2.gz", "log.3.gz", "log.4");
+  }
+
+  @Test
+  public void test_compressed_output_rolls() throws Exception {
+    appender.setMaximumFileSize(1000);
+    appender.setMaxBackupIndex(100);
+    appender.setCompressedOutput(true);
+    initAppender();
+
+    for (int i = 0; i < 20; i++) {
+      Logger.getRootLogger().warn("aaa" + i);
+    }
+    appender.close();
+
+    final Set<String> files = dumpFiles();
+    Assert.assertTrue(files.size() > 2);
+    final StringBuilder text = new StringBuilder();
+    for (String name : files) {
+      Assert.assertTrue(name, name.endsWith(".gz"));
+      final String content = Paths.readGzipText(new File(home, name));
+      Assert.assertTrue(content.length() < 1000 + 500);
+      text.append(content);
+    }
+    for (int i = 0; i < 20; i++) {
+      Assert.assertTrue(text.indexOf("\"aaa" + i + "\"") >= 0);
+    }
+  }
+
+  @Test
+  public void test_compressed_output_keeps_files_of_previous_run() throws Exception {
+    appender.setMaximumFileSize(1000);
+    appender.setMaxBackupIndex(100);
+    appender.setCompressedOutput(true);
+    initAppender();
+    for (int i = 0; i < 20; i++) {
+      Logger.getRootLogger().warn("aaa" + i);
+    }
+    appender.close();
+    final Set<String> previous = dumpFiles();
+    Assert.assertTrue(previous.size() > 2);
+
+    appender = new NextRollingFileAppender();
+    appender.setLayout(new JsonLayout());
+    appender.setMaximumFileSize(1000);
+    appender.setMaxBackupIndex(100);
+    appender.setCompressedOutput(true);
+    // ignored for the compressed output, must not make the restart trim the files
+    appender.setMemoryMapped(true);
+    appender.setFile(new File(home, "log").getPath());
+    initAppender();
+    Logger.getRootLogger().warn("bbb");
+    appender.close();
+    dumpFiles();
+
+    final StringBuilder text = new StringBuilder();
+    for (String name : previous) {
+      text.append(Paths.readGzipText(new File(home, name)));
+    }
+    for (int i = 0; i < 20; i++) {
+      Assert.assertTrue(text.indexOf("\"aaa" + i + "\"") >= 0);
+    }
+  }
+
+  @Test
+  public void test_compressed_output_is_readable_after_error() throws Exception {
+    appender.setMaximumFileSize(100000);
+    appender.setCompressedOutput(true);
+    initAppender();
+
+    Logger.getRootLogger().warn("aaa");
+    Logger.getRootLogger().error("bbb");
+
+    final File file = new File(home, "log.1.gz");
+    final StringBuilder text = new StringBuilder();
+    final Reader reader = new InputStreamReader(new GZIPInputStream(new FileInputStream(file)), "UTF-8");
+    try {
+      int c;
+      while ((c = reader.read()) >= 0) {
+        text.append((char) c);
+      }
+      Assert.fail("The file is not finished yet");
+    } catch (EOFException e) {
+      // no trailer
+    } finally {
+      reader.close();
+    }
+    Assert.assertTrue(text.toString(), text.indexOf("\"aaa\"") >= 0);
+    Assert.assertTrue(text.toString(), text.indexOf("\"bbb\"") >= 0);
+  }
+
+  @Test
+  public void test_compressed_output_rolls_on_compressed_size() throws Exception {
+    appender.setMaximumFileSize(1000);
+    appender.setCompressedOutput(true);
+    appender.setRollOnCompressedSize(true);
+    initAppender();
+
+    // the same event compresses well
+    for (int i = 0; i < 20; i++) {
+      Logger.getRootLogger().warn("aaa");
+    }
+    appender.close();
+
+    assertFiles("log.1.gz");
+    Assert.assertTrue(Paths.readGzipText(new File(home, "log.1.gz")).length() > 1000);
+  }
+
+  @Test
+  public void test_rolls_on_interval() {
+    appender.setMaximumFileSize(100000);
+    appender.setRollInterval(60 * 1000);
+    initAppender();
+
+    final long now = System.currentTimeMillis();
+    appender.doAppend(event(now, "aaa"));
+    appender.doAppend(event(now + 30 * 1000, "bbb"));
+    assertFiles("log.1");
+
+    appender.doAppend(event(now + 61 * 1000, "ccc"));
+    assertFiles("log.1", "log.2");
+  }
+
+  @Test
+  public void test_rolls_on_event_count() {
+    appender.setMaximumFileSize(100000);
+    appender.setMaxEventsPerFile(2);
+    initAppender();
+
+    for (int i = 0; i < 5; i++) {
+      Logger.getRootLogger().warn("aaa" + i);
+    }
+
+    assertFiles("log.1", "log.2", "log.3");
+  }
+
+  @Test
+  public void test_rolling_policy() {
+    appender.setRollingPolicy(new CompositeRollingPolicy(
+        new SizeBasedRollingPolicy(100000),
+        new EventCountRollingPolicy(3)));
+    initAppender();
+
+    for (int i = 0; i < 4; i++) {
+      Logger.getRootLogger().warn("aaa" + i);
+    }
+
+    assertFiles("log.1", "log.2");
+  }
+
+  private static LoggingEvent event(long timeStamp, String message) {
+    final Logger logger = Logger.getRootLogger();
+    return new LoggingEvent(Logger.class.getName(), logger, timeStamp, Level.WARN, message, null);
+  }
+
   @Test
   public void test_with_extension() throws IOException {
     appender.setFileExtension(".json");
@@ -127,6 +687,24 @@ public class NextRollingFileAppenderTest {
   }
 
 
+  @Test
+  public void test_non_json_layout_rolls_at_max_file_size() {
+    appender.setLayout(new PatternLayout("%m%n"));
+    appender.setMaximumFileSize(100);
+    initAppender();
+
+    for (int i = 0; i < 30; i++) {
+      Logger.getRootLogger().warn("0123456789");
+    }
+
+    long largest = 0;
+    for (File file : home.listFiles()) {
+      largest = Math.max(largest, file.length());
+    }
+    Assert.assertTrue("" + largest, largest >= 100);
+    Assert.assertTrue("" + largest, largest < 100 + 11);
+  }
+
   private void assertFiles(String... files) {
     final Set<String> actual = dumpFiles();
 
@@ -139,6 +717,12 @@ public class NextRollingFileAppenderTest {
   }
 
   private Set<String> dumpFiles() {
+    try {
+      appender.awaitHousekeeping();
+    } catch (Exception e) {
+      throw new AssertionError(e);
+    }
+
     System.out.println("Files in the directory: ");
     final Set<String> actual = new TreeSet<String>();
     for (String file : home.list()) {
@@ -1,9 +1,10 @@
 package org.jetbrains.appenders;
 
-import java.io.File;
+import java.io.*;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.Set;
+import java.util.zip.GZIPInputStream;
 
 /**
  * @author Eugene Petrenko (eugene.petrenko@gmail.com)
@@ -68,5 +69,26 @@ public class Paths {
     return removed;
   }
 
+  public static String readText(File file) throws IOException {
+    return readText(new FileInputStream(file));
+  }
+
+  public static String readGzipText(File file) throws IOException {
+    return readText(new GZIPInputStream(new FileInputStream(file)));
+  }
 
+  public static String readText(InputStream stream) throws IOException {
+    final StringBuilder sb = new StringBuilder();
+    final Reader reader = new InputStreamReader(stream, "utf-8");
+    try {
+      final char[] buf = new char[8192];
+      int len;
+      while ((len = reader.read(buf)) > 0) {
+        sb.append(buf, 0, len);
+      }
+    } finally {
+      reader.close();
+    }
+    return sb.toString();
+  }
 }
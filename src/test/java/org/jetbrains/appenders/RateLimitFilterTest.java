@@ -0,0 +1,176 @@
+package org.jetbrains.appenders;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.WriterAppender;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringWriter;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.not;
+
+public class RateLimitFilterTest {
+  private static final String LOGGER = "org.jetbrains.appenders.rate";
+
+  private StringWriter writer;
+  private RateLimitFilter filter;
+  private long now;
+
+  @Before
+  public void setUp() throws Exception {
+    writer = new StringWriter();
+
+    JsonLayout layout = new JsonLayout();
+    layout.activateOptions();
+
+    WriterAppender appender = new WriterAppender(layout, writer);
+    filter = new RateLimitFilter();
+    appender.addFilter(filter);
+
+    Logger logger = Logger.getRootLogger();
+    logger.removeAllAppenders();
+    logger.addAppender(appender);
+    logger.setLevel(Level.ALL);
+
+    now = System.currentTimeMillis();
+  }
+
+  @Test
+  public void should_not_filter_by_default() {
+    for (int i = 0; i < 10; i++) {
+      log(LOGGER, 0, "aaa");
+    }
+
+    Assert.assertEquals(10, count("aaa"));
+  }
+
+  @Test
+  public void should_limit_rate_per_logger() {
+    filter.setEventsPerSecond(1);
+    filter.setBurst(2);
+
+    for (int i = 0; i < 5; i++) {
+      log(LOGGER, 0, "aaa" + i);
+    }
+    log(LOGGER + ".other", 0, "bbb");
+    log(LOGGER, 2000, "ccc");
+    filter.reportSuppressed();
+
+    final String text = writer.toString();
+    Assert.assertThat(text, containsString("aaa0"));
+    Assert.assertThat(text, containsString("aaa1"));
+    Assert.assertThat(text, not(containsString("aaa2")));
+    Assert.assertThat(text, containsString("bbb"));
+    Assert.assertThat(text, containsString("ccc"));
+    Assert.assertThat(text, containsString("3 similar events suppressed"));
+    Assert.assertEquals(1, count("similar events suppressed"));
+  }
+
+  @Test
+  public void should_report_after_events_stop() {
+    filter.setEventsPerSecond(1);
+    filter.setBurst(1);
+
+    log(LOGGER, 0, "aaa");
+    log(LOGGER, 0, "aaa");
+    log(LOGGER, 0, "aaa");
+    filter.reportSuppressed();
+    filter.reportSuppressed();
+
+    Assert.assertEquals(1, count("2 similar events suppressed"));
+    Assert.assertEquals(1, count("similar events suppressed"));
+  }
+
+  @Test
+  public void should_report_to_own_appender_only() {
+    final StringWriter other = new StringWriter();
+    final JsonLayout layout = new JsonLayout();
+    layout.activateOptions();
+    Logger.getRootLogger().addAppender(new WriterAppender(layout, other));
+    filter.setEventsPerSecond(1);
+    filter.setBurst(1);
+
+    log(LOGGER, 0, "aaa");
+    log(LOGGER, 0, "aaa");
+    filter.reportSuppressed();
+
+    Assert.assertThat(writer.toString(), containsString("1 similar events suppressed"));
+    Assert.assertThat(other.toString(), not(containsString("suppressed")));
+  }
+
+  @Test
+  public void should_report_forgotten_limits() {
+    filter.setEventsPerSecond(1);
+    filter.setBurst(1);
+
+    log(LOGGER, 0, "aaa");
+    log(LOGGER, 0, "aaa");
+    filter.setBurst(2);
+    filter.reportSuppressed();
+
+    Assert.assertThat(writer.toString(), containsString("1 similar events suppressed"));
+  }
+
+  @Test
+  public void should_report_periodically() throws Exception {
+    filter.setEventsPerSecond(1);
+    filter.setBurst(1);
+    filter.setReportInterval(10);
+
+    log(LOGGER, 0, "aaa");
+    log(LOGGER, 0, "aaa");
+
+    for (int i = 0; i < 500 && count("suppressed") == 0; i++) {
+      Thread.sleep(10);
+    }
+    Assert.assertEquals(1, count("1 similar events suppressed"));
+  }
+
+  @Test
+  public void should_limit_rate_per_message() {
+    filter.setEventsPerSecond(1);
+    filter.setPerMessage(true);
+
+    log(LOGGER, 0, "aaa");
+    log(LOGGER, 0, "aaa");
+    log(LOGGER, 0, "bbb");
+
+    Assert.assertEquals(1, count("aaa"));
+    Assert.assertEquals(1, count("bbb"));
+  }
+
+  @Test
+  public void should_suppress_duplicates_within_window() {
+    filter.setDuplicateWindow(1000);
+
+    log(LOGGER, 0, "aaa");
+    log(LOGGER, 100, "aaa");
+    log(LOGGER, 200, "bbb");
+    log(LOGGER, 900, "aaa");
+    log(LOGGER, 1100, "aaa");
+
+    filter.reportSuppressed();
+
+    Assert.assertEquals(2, count("\"aaa\""));
+    Assert.assertEquals(1, count("bbb"));
+    Assert.assertThat(writer.toString(), containsString("2 similar events suppressed"));
+  }
+
+  private void log(String loggerName, long offset, String message) {
+    final Logger logger = Logger.getLogger(loggerName);
+    logger.callAppenders(new LoggingEvent(Logger.class.getName(), logger, now + offset, Level.INFO, message, null));
+  }
+
+  private int count(String text) {
+    final String output = writer.toString();
+    int count = 0;
+    for (int i = output.indexOf(text); i >= 0; i = output.indexOf(text, i + 1)) {
+      count++;
+    }
+    return count;
+  }
+}
@@ -0,0 +1,219 @@
+package org.jetbrains.appenders;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.apache.log4j.NDC;
+import org.apache.log4j.WriterAppender;
+import org.apache.log4j.varia.LevelMatchFilter;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.StringWriter;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.not;
+
+public class SamplingFilterTest {
+  private StringWriter writer;
+  private SamplingFilter filter;
+
+  @Before
+  public void setUp() throws Exception {
+    writer = new StringWriter();
+
+    JsonLayout layout = new JsonLayout();
+    layout.activateOptions();
+
+    WriterAppender appender = new WriterAppender(layout, writer);
+    filter = new SamplingFilter();
+    appender.addFilter(filter);
+
+    Logger logger = Logger.getRootLogger();
+    logger.removeAllAppenders();
+    logger.addAppender(appender);
+    logger.setLevel(Level.ALL);
+
+    // left by other tests on this thread
+    MDC.clear();
+    NDC.clear();
+  }
+
+  @Test
+  public void should_not_filter_by_default() {
+    for (int i = 0; i < 10; i++) {
+      Logger.getLogger("com.foo.http").debug("aaa");
+    }
+
+    Assert.assertEquals(10, count("aaa"));
+  }
+
+  @Test
+  public void should_sample_by_category_and_level() {
+    filter.setRates("com.foo.http:INFO=0, com.foo.http:DEBUG=1, com.bar=0");
+
+    Logger.getLogger("com.foo.http.client").info("aaa");
+    Logger.getLogger("com.foo.http.client").debug("bbb");
+    Logger.getLogger("com.foo.http.client").warn("ccc");
+    Logger.getLogger("com.bar").error("ddd");
+    Logger.getLogger("com.foo").info("eee");
+
+    final String text = writer.toString();
+    Assert.assertThat(text, not(containsString("aaa")));
+    Assert.assertThat(text, containsString("bbb"));
+    Assert.assertThat(text, containsString("ccc"));
+    Assert.assertThat(text, not(containsString("ddd")));
+    Assert.assertThat(text, containsString("eee"));
+  }
+
+  @Test
+  public void should_ignore_rates_out_of_range() {
+    filter.setRates("com.foo=NaN, com.bar=-1, com.baz=2, com.qux=Infinity");
+    filter.setMarkSampled(true);
+
+    Logger.getLogger("com.foo").info("aaa");
+    Logger.getLogger("com.bar").info("bbb");
+    Logger.getLogger("com.baz").info("ccc");
+    Logger.getLogger("com.qux").info("ddd");
+
+    final String text = writer.toString();
+    Assert.assertEquals(4, text.split("\n").length);
+    Assert.assertThat(text, not(containsString("sampleRate")));
+  }
+
+  @Test
+  public void should_keep_a_fraction_of_events() {
+    filter.setRates("com.foo:INFO=0.25");
+
+    for (int i = 0; i < 4000; i++) {
+      Logger.getLogger("com.foo").info("aaa");
+    }
+
+    final int kept = count("aaa");
+    Assert.assertTrue("" + kept, 700 < kept && kept < 1300);
+  }
+
+  @Test
+  public void should_mark_sampled_events() {
+    filter.setRates("com.foo=0.999999");
+    filter.setMarkSampled(true);
+
+    Logger logger = Logger.getLogger("com.foo");
+    for (int i = 0; i < 10; i++) {
+      logger.info("aaa");
+    }
+    Logger.getLogger("com.bar").info("bbb");
+
+    final String text = writer.toString();
+    Assert.assertThat(text, containsString("\"sampleRate\":0.999999"));
+    Assert.assertThat(text, not(containsString("\"mdc\"")));
+    Assert.assertThat(text.substring(text.indexOf("bbb")), not(containsString("sampleRate")));
+  }
+
+  @Test
+  public void should_mark_only_for_own_appender() {
+    final StringWriter other = new StringWriter();
+    final JsonLayout layout = new JsonLayout();
+    layout.activateOptions();
+    Logger.getRootLogger().addAppender(new WriterAppender(layout, other));
+    filter.setRates("com.foo=0.999999");
+    filter.setMarkSampled(true);
+
+    for (int i = 0; i < 10; i++) {
+      Logger.getLogger("com.foo").info("aaa");
+    }
+
+    Assert.assertThat(writer.toString(), containsString("\"sampleRate\":0.999999"));
+    Assert.assertThat(other.toString(), containsString("aaa"));
+    Assert.assertThat(other.toString(), not(containsString("sampleRate")));
+  }
+
+  @Test
+  public void should_not_mark_events_accepted_before_sampling() {
+    final StringWriter accepted = new StringWriter();
+    final JsonLayout layout = new JsonLayout();
+    layout.activateOptions();
+    final WriterAppender appender = new WriterAppender(layout, accepted);
+    final LevelMatchFilter acceptWarnings = new LevelMatchFilter();
+    acceptWarnings.setLevelToMatch("WARN");
+    appender.addFilter(acceptWarnings);
+    final SamplingFilter sampling = new SamplingFilter();
+    sampling.setRates("com.foo=0.999999");
+    sampling.setMarkSampled(true);
+    appender.addFilter(sampling);
+    Logger.getRootLogger().removeAllAppenders();
+    Logger.getRootLogger().addAppender(appender);
+
+    Logger.getLogger("com.foo").info("aaa");
+    Logger.getLogger("com.foo").warn("bbb");
+
+    final String text = accepted.toString();
+    Assert.assertThat(text.substring(0, text.indexOf("bbb")), containsString("\"sampleRate\":0.999999"));
+    Assert.assertThat(text.substring(text.indexOf('\n') + 1), not(containsString("sampleRate")));
+  }
+
+  @Test
+  public void should_mark_events_of_async_appender() throws Exception {
+    final File file = File.createTempFile("sampling", ".log");
+    final AsyncJsonFileAppender appender = new AsyncJsonFileAppender();
+    try {
+      appender.setFile(file.getPath());
+      appender.setFileExtension("");
+      appender.setMaximumFileSize(100 * 1024 * 1024);
+      appender.activateOptions();
+      filter.setRates("com.foo=0.999999");
+      filter.setMarkSampled(true);
+      appender.addFilter(filter);
+      Logger.getRootLogger().removeAllAppenders();
+      Logger.getRootLogger().addAppender(appender);
+
+      Logger.getLogger("com.foo").info("aaa");
+      Logger.getLogger("com.bar").info("bbb");
+      appender.close();
+
+      final String text = Paths.readText(new File(file.getPath() + ".1"));
+      Assert.assertThat(text.substring(0, text.indexOf("bbb")), containsString("\"sampleRate\":0.999999"));
+      Assert.assertThat(text.substring(text.indexOf('\n') + 1), not(containsString("sampleRate")));
+    } finally {
+      appender.close();
+      Paths.delete(new File(file.getPath() + ".1"));
+      Paths.delete(file);
+    }
+  }
+
+  @Test
+  public void should_keep_mdc_key_named_like_the_field() {
+    MDC.put("sampleRate", "aaa");
+    try {
+      Logger.getLogger("com.foo").info("bbb");
+    } finally {
+      MDC.remove("sampleRate");
+    }
+
+    Assert.assertThat(writer.toString(), containsString("\"mdc\":{\"sampleRate\":\"aaa\"}"));
+  }
+
+  @Test
+  public void should_write_sample_rate_as_number() {
+    Assert.assertTrue(JsonLayout.isJsonNumber("0"));
+    Assert.assertTrue(JsonLayout.isJsonNumber("0.01"));
+    Assert.assertTrue(JsonLayout.isJsonNumber("-12.5E-4"));
+    Assert.assertFalse(JsonLayout.isJsonNumber(""));
+    Assert.assertFalse(JsonLayout.isJsonNumber("01"));
+    Assert.assertFalse(JsonLayout.isJsonNumber("1."));
+    Assert.assertFalse(JsonLayout.isJsonNumber(".5"));
+    Assert.assertFalse(JsonLayout.isJsonNumber("NaN"));
+    Assert.assertFalse(JsonLayout.isJsonNumber("1e"));
+  }
+
+  private int count(String text) {
+    final String output = writer.toString();
+    int count = 0;
+    for (int i = output.indexOf(text); i >= 0; i = output.indexOf(text, i + 1)) {
+      count++;
+    }
+    return count;
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.appenders;
+
+import org.junit.Test;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+
+public class TimestampEncoderTest {
+
+    private final TimestampEncoder encoder = new TimestampEncoder();
+
+    @Test
+    public void testMatchesSimpleDateFormat() throws Exception {
+        DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        Random random = new Random(42);
+        long[] times = new long[10000];
+        for (int i = 0; i < times.length; i++) {
+            // year 1970 .. ~2220, in both random and sequential order to exercise the cache
+            times[i] = i % 2 == 0 ? (long) (random.nextDouble() * 7900000000000L) : times[i - 1] + random.nextInt(2000);
+        }
+        times[0] = 0;
+        times[2] = 951782400000L; // 2000-02-29T00:00:00.000Z
+        times[4] = 253402300799999L; // 9999-12-31T23:59:59.999Z
+
+        for (long time : times) {
+            assertEquals(dateFormat.format(new Date(time)), iso(time, TimestampEncoder.MILLIS));
+        }
+    }
+
+    @Test
+    public void testBeforeEpoch() throws Exception {
+        assertEquals("1969-12-31T23:59:59.999Z", iso(-1, TimestampEncoder.MILLIS));
+        assertEquals("1969-12-31T23:59:59.000Z", iso(-1000, TimestampEncoder.MILLIS));
+    }
+
+    @Test
+    public void testMicros() throws Exception {
+        assertEquals("2013-11-17T10:21:41.863000Z", iso(1384683701863L, TimestampEncoder.MICROS));
+    }
+
+    @Test
+    public void testEpochMillis() throws Exception {
+        StringBuilder out = new StringBuilder();
+        TimestampEncoder.appendEpochMillis(out, 1384683701863L);
+        assertEquals("1384683701863", out.toString());
+    }
+
+    private String iso(long time, int precision) {
+        StringBuilder out = new StringBuilder();
+        encoder.appendIso(out, time, precision);
+        return out.toString();
+    }
+}